@@ -7,6 +7,7 @@
 package nl.inl.corpuswebsite;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.Arrays;
 import java.util.List;
@@ -25,6 +26,7 @@ import org.apache.velocity.app.event.ReferenceInsertionEventHandler;
 import org.apache.velocity.tools.generic.DateTool;
 import org.apache.velocity.tools.generic.EscapeTool;
 
+import nl.inl.corpuswebsite.utils.CompressingOutputStream;
 import nl.inl.corpuswebsite.utils.GlobalConfig;
 import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
 import nl.inl.corpuswebsite.utils.QueryException;
@@ -185,7 +187,7 @@ public abstract class BaseResponse {
         response.setContentType(mimeType);
 
         // Merge context into the page template and write to output stream
-        try (OutputStreamWriter osw = new OutputStreamWriter(response.getOutputStream(), OUTPUT_ENCODING)) {
+        try (OutputStreamWriter osw = new OutputStreamWriter(getOutputStream(), OUTPUT_ENCODING)) {
             template.merge(model, osw);
             osw.flush();
         } catch (Exception e) {
@@ -193,6 +195,15 @@ public abstract class BaseResponse {
         }
     }
 
+    /**
+     * Get the stream to write the response body to. It is compressed while writing if the client supports it, so it must be closed when done.
+     * Headers must be set before calling this.
+     */
+    protected OutputStream getOutputStream() throws IOException {
+        GlobalConfig config = servlet.getGlobalConfig();
+        return CompressingOutputStream.wrap(request, response, config.getInt(Keys.COMPRESSION_LEVEL), config.getInt(Keys.COMPRESSION_MIN_SIZE));
+    }
+
     /**
      * Display a template with the HTML mime type
      *
@@ -13,19 +13,41 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
@@ -35,6 +57,7 @@ import javax.servlet.http.HttpServletResponse;
 import javax.xml.transform.TransformerException;
 
 import org.apache.commons.configuration2.ex.ConfigurationException;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.velocity.Template;
 import org.apache.velocity.app.Velocity;
@@ -51,12 +74,20 @@ import nl.inl.corpuswebsite.response.HelpResponse;
 import nl.inl.corpuswebsite.response.OidcCallbackResponse;
 import nl.inl.corpuswebsite.response.RemoteIndexResponse;
 import nl.inl.corpuswebsite.response.SearchResponse;
+import nl.inl.corpuswebsite.utils.AuthRequest;
 import nl.inl.corpuswebsite.utils.BlackLabApi;
+import nl.inl.corpuswebsite.utils.BlackLabBackends;
 import nl.inl.corpuswebsite.utils.CorpusConfig;
 import nl.inl.corpuswebsite.utils.CorpusFileUtil;
+import nl.inl.corpuswebsite.utils.CorpusFileWatcher;
+import nl.inl.corpuswebsite.utils.Deadline;
+import nl.inl.corpuswebsite.utils.DocumentMetadata;
+import nl.inl.corpuswebsite.utils.ExpiringCache;
 import nl.inl.corpuswebsite.utils.GlobalConfig;
 import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
 import nl.inl.corpuswebsite.utils.QueryException;
+import nl.inl.corpuswebsite.utils.RequestCancelledException;
+import nl.inl.corpuswebsite.utils.RequestHedger;
 import nl.inl.corpuswebsite.utils.Result;
 import nl.inl.corpuswebsite.utils.ReturnToClientException;
 import nl.inl.corpuswebsite.utils.WebsiteConfig;
@@ -90,7 +121,12 @@ public class MainServlet extends HttpServlet {
     /**
      * Xslt transformers for corpora
      */
-    private static final Map<String, Result<XslTransformer, TransformerException>> articleTransformers = new HashMap<>();
+    private static final Map<List<String>, Result<XslTransformer, TransformerException>> articleTransformers = new ConcurrentHashMap<>();
+
+    /**
+     * Contents of the help and about pages for corpora
+     */
+    private static final Map<String, String> includeFiles = new ConcurrentHashMap<>();
 
     /**
      * The response classes for our URI patterns
@@ -99,6 +135,37 @@ public class MainServlet extends HttpServlet {
 
     private GlobalConfig config;
 
+    /**
+     * BlackLab may return different data depending on who is asking, so anything retrieved on behalf of a logged-in user
+     * is cached separately, keyed on (a hash of) their credentials, and only for a short while, as permissions may change.
+     */
+    private ExpiringCache<String, Result<CorpusConfig, Exception>> authenticatedConfigCache;
+    private ExpiringCache<List<String>, Result<XslTransformer, TransformerException>> authenticatedTransformers;
+
+    /** Transformed document contents, see {@link #getCachedArticle(HttpServletRequest, List, Supplier)}. */
+    private ExpiringCache<List<Object>, Result<String, QueryException>> articleCache;
+    /** Document metadata, keyed by corpus and document id, see {@link #getDocumentMetadata(HttpServletRequest, String, String, Supplier)}. */
+    private ExpiringCache<List<String>, Result<DocumentMetadata, QueryException>> metadataCache;
+    /** Incremented whenever cached stylesheets are evicted, so anything rendered with the old version is no longer used. */
+    private final AtomicLong stylesheetVersion = new AtomicLong();
+
+    /** For work that shouldn't hold up requests, such as refreshing cached data. */
+    private ExecutorService backgroundExecutor;
+
+    /**
+     * Handles requests that may be cancelled (see {@link #CANCELLABLE_PAGES}). At most as many threads as Tomcat uses by default,
+     * when they're all busy the request is handled on the container's thread instead (and can't be cancelled).
+     */
+    private ExecutorService requestExecutor;
+
+    /** Pages that do a lot of work (retrieving and transforming documents), that should stop when the client goes away. */
+    private static final Set<String> CANCELLABLE_PAGES = Set.of("docs", "api");
+    /** Request attribute holding the error of a request handled on another thread, to be rethrown on the container's thread (see {@link #processRequest}). */
+    private static final String ASYNC_ERROR = MainServlet.class.getName() + ".asyncError";
+
+    /** Evicts cached files when they're changed on disk. Null if caching is disabled or the corpus config dir doesn't exist. */
+    private CorpusFileWatcher corpusFileWatcher;
+
     @Override
     public void init(ServletConfig cfg) throws ServletException {
         try {
@@ -109,7 +176,35 @@ public class MainServlet extends HttpServlet {
             startVelocity(ctx);
 
             XslTransformer.setUseCache(this.useCache(null));
-            BlackLabApi.setBlsUrl(config.get(Keys.BLS_URL_ON_SERVER));
+            AuthRequest.configure(config);
+            BlackLabApi.setBackends(BlackLabBackends.fromConfig(config));
+            BlackLabApi.setHedger(RequestHedger.fromConfig(config));
+
+            requestExecutor = new ThreadPoolExecutor(0, 200, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+                Thread t = new Thread(r, "corpus-frontend-request");
+                t.setDaemon(true);
+                return t;
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+            backgroundExecutor = Executors.newFixedThreadPool(2, r -> {
+                Thread t = new Thread(r, "corpus-frontend-background");
+                t.setDaemon(true);
+                return t;
+            });
+            configCache = new ExpiringCache<>(Long.MAX_VALUE, config.getInt(Keys.CACHE_REFRESH_INTERVAL) * 1000L, Integer.MAX_VALUE, Result::hasResult, backgroundExecutor);
+
+            long authTtl = config.getInt(Keys.CACHE_AUTHENTICATED_TTL) * 1000L;
+            int authMaxSize = config.getInt(Keys.CACHE_AUTHENTICATED_MAX_SIZE);
+            authenticatedConfigCache = new ExpiringCache<>(authTtl, authMaxSize, Result::hasResult);
+            authenticatedTransformers = new ExpiringCache<>(authTtl, authMaxSize, Result::hasResult);
+
+            articleCache = new ExpiringCache<>(config.getInt(Keys.CACHE_ARTICLES_TTL) * 1000L, config.getInt(Keys.CACHE_ARTICLES_MAX_SIZE),
+                    r -> r.getResult().map(s -> (long) s.length()).orElse(0L), config.getInt(Keys.CACHE_ARTICLES_MAX_MEGABYTES) * 1024L * 1024L, Result::hasResult);
+            metadataCache = new ExpiringCache<>(config.getInt(Keys.CACHE_METADATA_TTL) * 1000L, config.getInt(Keys.CACHE_METADATA_MAX_SIZE), Result::hasResult);
+
+            if (useCache(null)) {
+                corpusFileWatcher = CorpusFileWatcher.watch(config.get(Keys.CORPUS_CONFIG_DIR), this::onCorpusFileChanged).orElse(null);
+                backgroundExecutor.execute(this::preloadCorpusConfigs);
+            }
 
             // Map responses, the majority of these can be served for a specific corpus, or as a general autosearch page
             // E.G. the AboutResponse is mapped to /<root>/<corpus>/about and /<root>/about
@@ -199,7 +294,12 @@ public class MainServlet extends HttpServlet {
     }
 
     // TODO use network-level caching or something, so we automatically handle lifetime, authentication, etc.
-    private static final Map<String, Result<CorpusConfig, Exception>> configCache = new HashMap<>();
+    /**
+     * Corpus configs for anonymous requests. Only successfully loaded configs are stored, so a failed load (e.g. BlackLab was down) is retried on the next request.
+     * Entries are kept indefinitely, but once older than CACHE_REFRESH_INTERVAL they're reloaded in the background,
+     * so a re-indexed corpus is picked up without any request having to wait for BlackLab.
+     */
+    private ExpiringCache<String, Result<CorpusConfig, Exception>> configCache;
     /**
      * Get the corpus config (as returned from blacklab-server), if this is a valid corpus
      *
@@ -212,12 +312,48 @@ public class MainServlet extends HttpServlet {
 
         // Contact blacklab-server for the config xml file if we have a corpus
         Function<String, Result<CorpusConfig, Exception>> gen = c -> new BlackLabApi(request, response, this.config).getCorpusConfig(c);
-        synchronized (configCache) {
-            return Result
-                    .from(corpus)
-                    .flatMap(c -> useCache(request) ? configCache.computeIfAbsent(c, gen) : gen.apply(c))
-                    .orError(() -> new FileNotFoundException("No corpus specified"));
-        }
+        return Result
+                .from(corpus)
+                .flatMap(c -> {
+                    if (!useCache(null)) return gen.apply(c);
+                    return getCredentialHash(request)
+                            .map(user -> authenticatedConfigCache.get(c + "_" + user, () -> gen.apply(c)))
+                            .orElseGet(() -> configCache.get(c, () -> gen.apply(c), () -> refreshCorpusConfig(c)));
+                })
+                .orError(() -> new FileNotFoundException("No corpus specified"));
+    }
+
+    /**
+     * Load the configs of all public corpora into the cache, so the first requests after startup don't have to wait for them.
+     * The first load of a config may take two requests to BlackLab, one after the other (see {@link BlackLabApi#getCorpusConfig(String)}).
+     * Requests for a corpus that's being loaded wait for that load instead of starting their own.
+     */
+    private void preloadCorpusConfigs() {
+        BlackLabApi api = new BlackLabApi(null, null, this.config);
+        api.getCorpusIds().ifPresentOrElse(
+                corpora -> corpora.forEach(c -> configCache.get(c, () -> api.getCorpusConfig(c))),
+                e -> logger.warning("Could not get the list of corpora from BlackLab, their configs are loaded on first use: " + e.getMessage())
+        );
+    }
+
+    /** Runs in the background, so don't use the request that triggered it, it might already be finished. */
+    private Result<CorpusConfig, Exception> refreshCorpusConfig(String corpus) {
+        Result<CorpusConfig, Exception> r = new BlackLabApi(null, null, this.config).getCorpusConfig(corpus);
+        // When the corpus is gone, stop serving the stale config. For other errors (BlackLab unreachable etc.) keep the stale config around.
+        r.getError()
+            .filter(e -> e instanceof QueryException && ((QueryException) e).getHttpStatusCode() == HttpServletResponse.SC_NOT_FOUND)
+            .ifPresent(e -> configCache.invalidate(corpus));
+        return r;
+    }
+
+    @Override
+    public void destroy() {
+        if (backgroundExecutor != null) backgroundExecutor.shutdownNow();
+        if (requestExecutor != null) requestExecutor.shutdownNow();
+        if (corpusFileWatcher != null) corpusFileWatcher.close();
+        BlackLabApi.getHedger().ifPresent(RequestHedger::shutdown);
+        BlackLabApi.setHedger(null);
+        super.destroy();
     }
 
     @Override
@@ -231,6 +367,12 @@ public class MainServlet extends HttpServlet {
     }
 
     private void processRequest(HttpServletRequest request, HttpServletResponse response) throws ServletException {
+        if (request.getDispatcherType() == DispatcherType.ASYNC && request.getAttribute(ASYNC_ERROR) instanceof ServletException) {
+            // Failed after part of the response was sent. Throwing on the container's thread makes it abort the connection,
+            // instead of ending the response as if it were complete.
+            throw (ServletException) request.getAttribute(ASYNC_ERROR);
+        }
+
         try {
             request.setCharacterEncoding("utf-8");
         } catch (UnsupportedEncodingException ex) {
@@ -258,12 +400,14 @@ public class MainServlet extends HttpServlet {
             .collect(Collectors.toList());
 
         Class<? extends BaseResponse> responseClass;
+        String page;
         String corpus;
         List<String> pathParameters;
 
         if (pathParts.isEmpty()) {
             // don't have any path. E.g. /corpus-frontend
             responseClass = responses.get(DEFAULT_PAGE);
+            page = DEFAULT_PAGE;
             corpus = null;
             pathParameters = new ArrayList<>();
         } else {
@@ -271,6 +415,7 @@ public class MainServlet extends HttpServlet {
             if (responses.containsKey(part1)) {
                 // matched a page directly. E.g. /corpus-frontend/help
                 responseClass = responses.get(part1);
+                page = part1;
                 corpus = null;
                 pathParameters = new ArrayList<>(pathParts);
             } else if (pathParts.isEmpty()) {
@@ -284,10 +429,55 @@ public class MainServlet extends HttpServlet {
                 corpus = part1;
                 String pageOrCorpus = pathParts.remove(0);
                 responseClass = responses.getOrDefault(pageOrCorpus, ErrorResponse.class);
+                page = pageOrCorpus;
                 pathParameters = new ArrayList<>(pathParts);
             }
         }
 
+        Deadline deadline = getDeadline(page);
+        deadline.attach(request);
+        if (!CANCELLABLE_PAGES.contains(page) || !request.isAsyncSupported()) {
+            handleRequest(request, response, responseClass, corpus, pathParameters);
+            return;
+        }
+
+        // Handle the request on another thread, so the container is free to notice when the client disconnects,
+        // then stop working on it (see Deadline#cancel).
+        AsyncContext async = request.startAsync();
+        async.setTimeout(0); // the deadline takes care of this
+        async.addListener(new AsyncListener() {
+            @Override public void onError(AsyncEvent event) { deadline.cancel(); }
+            @Override public void onTimeout(AsyncEvent event) { deadline.cancel(); }
+            @Override public void onComplete(AsyncEvent event) {}
+            @Override public void onStartAsync(AsyncEvent event) {}
+        });
+        requestExecutor.execute(() -> {
+            try {
+                handleRequest(request, response, responseClass, corpus, pathParameters);
+            } catch (ServletException e) {
+                logger.log(Level.SEVERE, "Error handling request " + request.getRequestURI(), e);
+                if (response.isCommitted()) {
+                    // Part of the response was sent already, have the container abort it (see processRequest).
+                    request.setAttribute(ASYNC_ERROR, e);
+                } else {
+                    try {
+                        response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    } catch (IOException | IllegalStateException ex) {
+                        // client is gone, or the response already completed
+                    }
+                }
+            } finally {
+                try {
+                    if (request.getAttribute(ASYNC_ERROR) != null) async.dispatch();
+                    else async.complete();
+                } catch (IllegalStateException e) {
+                    // already completed by the container, after the client disconnected
+                }
+            }
+        });
+    }
+
+    private void handleRequest(HttpServletRequest request, HttpServletResponse response, Class<? extends BaseResponse> responseClass, String corpus, List<String> pathParameters) throws ServletException {
         try {
             try {
                 BaseResponse br = responseClass.getConstructor().newInstance();
@@ -309,12 +499,21 @@ public class MainServlet extends HttpServlet {
                     response.sendError(e.getCode(), e.getMessage());
                 else if (e.getMessage() != null)
                     response.getWriter().write(e.getMessage());
+            } catch (RequestCancelledException e) {
+                // The client went away, nobody to respond to.
+                logger.fine("Request cancelled by client: " + request.getRequestURI());
             }
         } catch (Exception e) {
             throw new ServletException(e);
         }
     }
 
+    /** Pages that retrieve and transform documents have their own (usually longer) time limit. */
+    private Deadline getDeadline(String page) {
+        Keys key = page.equals("docs") ? Keys.REQUEST_DEADLINE_DOCS : page.equals("api") ? Keys.REQUEST_DEADLINE_API : Keys.REQUEST_DEADLINE;
+        return Deadline.after(Duration.ofSeconds(config.getInt(key)));
+    }
+
     /**
      * <pre>
      * Wrapper for caching compiled xslt.
@@ -322,16 +521,55 @@ public class MainServlet extends HttpServlet {
      * </pre>
      * @param corpus - corpus to get the stylesheet for
      * @param name - the name of the stylesheet, excluding extension (currently supported "article" and "meta")
-     * @return the xsl transformer to use for transformation, note that this is always the same transformer.
+     * @return the xsl transformer to use for transformation, note that this is always the same (immutable) transformer, set parameters with {@link XslTransformer#withParameters}.
      */
     public Result<XslTransformer, TransformerException> getStylesheet(CorpusConfig corpus, String name, HttpServletRequest request, HttpServletResponse response) {
         Optional<String> corpusDataFormat = corpus.getCorpusDataFormat();
-        Function<String, Result<XslTransformer, TransformerException>> gen = __ -> CorpusFileUtil.getStylesheet(corpus, config, name, request, response);
+        Function<List<String>, Result<XslTransformer, TransformerException>> gen = __ -> CorpusFileUtil.getStylesheet(corpus, config, name, request, response);
 
         // need to use corpus name in the cache map
         // because corpora can define their own xsl files in their own data directory
-        String key = corpus + "_" + corpusDataFormat.orElse("missing-format") + "_" + name;
-        return this.useCache(request) ? articleTransformers.computeIfAbsent(key, gen) : gen.apply(key);
+        // (the corpus is kept separate, so we can evict exactly the entries of one corpus, see onCorpusFileChanged)
+        String format = corpusDataFormat.orElse("missing-format");
+        List<String> key = Arrays.asList(corpus.getCorpusId(), format, name);
+        if (!useCache(null)) return gen.apply(key);
+        return getCredentialHash(request)
+                .map(user -> authenticatedTransformers.get(Arrays.asList(corpus.getCorpusId(), format, name, user), () -> gen.apply(key)))
+                .orElseGet(() -> articleTransformers.computeIfAbsent(key, gen))
+                // Don't keep the error if it may have been because this request ran out of time.
+                .tapError(e -> { if (Deadline.of(request).isExpired()) articleTransformers.remove(key); });
+    }
+
+    /**
+     * Transformed documents are requested with identical parameters over and over, so we cache the final html.
+     * Only for requests that may use the cache (see {@link #useCache(HttpServletRequest)}).
+     *
+     * @param request the request, to check for authentication
+     * @param key everything that determines the output (document, query, pagination, stylesheet and xslt parameters, etc.)
+     * @param gen retrieves and transforms the document if not cached
+     * @return the transformed document
+     */
+    public Result<String, QueryException> getCachedArticle(HttpServletRequest request, List<Object> key, Supplier<Result<String, QueryException>> gen) {
+        return useCache(request) ? articleCache.get(key, gen) : gen.get();
+    }
+
+    /**
+     * Get the metadata of a document. Paging through a document needs it for every page (for the document length), so we cache it.
+     * Only for requests that may use the cache (see {@link #useCache(HttpServletRequest)}).
+     *
+     * @param request the request, to check for authentication
+     * @param corpusId the corpus
+     * @param docId the document
+     * @param gen retrieves the metadata if not cached
+     * @return the metadata
+     */
+    public Result<DocumentMetadata, QueryException> getDocumentMetadata(HttpServletRequest request, String corpusId, String docId, Supplier<Result<DocumentMetadata, QueryException>> gen) {
+        return useCache(request) ? metadataCache.get(Arrays.asList(corpusId, docId), gen) : gen.get();
+    }
+
+    /** Changes whenever stylesheets may have changed, include this in the key of anything rendered with them. */
+    public long getStylesheetVersion() {
+        return stylesheetVersion.get();
     }
 
     public Optional<File> getProjectFile(Optional<String> corpus, String file) {
@@ -342,16 +580,70 @@ public class MainServlet extends HttpServlet {
                 Optional.of(file));
     }
 
-    public InputStream getHelpPage(Optional<String> corpus) {
-        return Result.from(getProjectFile(corpus, "help.inc"))
-                .mapWithErrorHandling(FileInputStream::new)
-                .getOrThrow(IllegalStateException::new); // this file always exists (at least the fallback in our own jar)
+    public String getHelpPage(Optional<String> corpus) {
+        return getIncludeFile(corpus, "help.inc");
+    }
+
+    public String getAboutPage(Optional<String> corpus) {
+        return getIncludeFile(corpus, "about.inc");
     }
 
-    public InputStream getAboutPage(Optional<String> corpus) {
-        return Result.from(getProjectFile(corpus, "about.inc"))
-                .mapWithErrorHandling(FileInputStream::new)
+    private String getIncludeFile(Optional<String> corpus, String fileName) {
+        Function<String, String> gen = __ -> Result.from(getProjectFile(corpus, fileName))
+                .mapWithErrorHandling(f -> {
+                    try (InputStream is = new FileInputStream(f)) {
+                        return StringUtils.join(IOUtils.readLines(is, "utf-8"), "\n");
+                    }
+                })
                 .getOrThrow(IllegalStateException::new); // this file always exists (at least the fallback in our own jar)
+
+        String key = corpus.map(c -> c + "/").orElse("") + fileName;
+        return useCache(null) ? includeFiles.computeIfAbsent(key, gen) : gen.apply(key);
+    }
+
+    /**
+     * Evict everything that was cached from a file in the corpus config dir, so it is reloaded on next use.
+     * The default dir supplies fallback files for every corpus, so a change there evicts the entries for all corpora.
+     * See {@link CorpusFileWatcher.Listener#changed(String, String)}.
+     */
+    private void onCorpusFileChanged(String corpusDir, String fileName) {
+        boolean allCorpora = corpusDir == null || corpusDir.equals(config.get(Keys.DEFAULT_CORPUS_CONFIG));
+        Predicate<String> isAffected = corpus -> allCorpora || corpusDir.equals(corpus);
+
+        if (fileName == null || fileName.equals("search.xml")) {
+            logger.info("search.xml changed for " + (allCorpora ? "all corpora" : corpusDir) + ", reloading");
+            synchronized (this) {
+                configs.keySet().removeIf(isAffected);
+            }
+        }
+        if (fileName == null || fileName.endsWith(".xsl")) {
+            logger.info("Stylesheets changed for " + (allCorpora ? "all corpora" : corpusDir) + ", recompiling");
+            // Compile in the background, requests keep using the old versions until the new ones are ready.
+            // Also recompile the other stylesheets for the corpus, they may include the one that changed.
+            Path dir = Paths.get(config.get(Keys.CORPUS_CONFIG_DIR));
+            Path affectedDir = corpusDir == null ? dir : dir.resolve(corpusDir);
+            backgroundExecutor.execute(() -> {
+                XslTransformer.recompile(allCorpora ? dir : affectedDir, getStylesheetFiles(affectedDir, fileName));
+                // Now look up the stylesheets again (cheap now that they're compiled), so new or deleted files are picked up.
+                Predicate<List<String>> isAffectedKey = key -> allCorpora || corpusDir.equals(key.get(0));
+                articleTransformers.keySet().removeIf(isAffectedKey);
+                authenticatedTransformers.invalidateIf(isAffectedKey);
+                stylesheetVersion.incrementAndGet();
+            });
+        }
+        if (fileName == null || fileName.equals("help.inc") || fileName.equals("about.inc")) {
+            includeFiles.keySet().removeIf(key -> allCorpora || key.startsWith(corpusDir + "/"));
+        }
+    }
+
+    /** The stylesheet that changed, or all stylesheets in the directory if we don't know which file changed. */
+    private static List<Path> getStylesheetFiles(Path dir, String fileName) {
+        if (fileName != null) return List.of(dir.resolve(fileName));
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(f -> f.getFileName().toString().endsWith(".xsl")).collect(Collectors.toList());
+        } catch (IOException e) {
+            return List.of();
+        }
     }
 
     /**
@@ -365,6 +657,23 @@ public class MainServlet extends HttpServlet {
         return Boolean.parseBoolean(this.config.get(Keys.CACHE)) && auth.isEmpty();
     }
 
+    /**
+     * Get a key identifying the user making this request, for use in caches.
+     * This is a hash of the authentication parameter (according to AUTH_SOURCE_NAME and AUTH_SOURCE_TYPE), so the credentials themselves are never held in a cache.
+     * @return the hash, or empty if the request contains no authentication.
+     */
+    public Optional<String> getCredentialHash(HttpServletRequest request) {
+        return BlackLabApi.readRequestParameter(request, config.get(Keys.AUTH_SOURCE_TYPE), config.get(Keys.AUTH_SOURCE_NAME))
+                .map(auth -> {
+                    try {
+                        byte[] hash = MessageDigest.getInstance("SHA-256").digest(auth.getBytes(StandardCharsets.UTF_8));
+                        return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+                    } catch (NoSuchAlgorithmException e) {
+                        throw new IllegalStateException("SHA-256 is always available", e);
+                    }
+                });
+    }
+
     /** Render debug info checkbox in the search interface? */
     public boolean debugInfo() {
         return Boolean.parseBoolean(this.config.get(Keys.SHOW_DEBUG_CHECKBOX_ON_CLIENT));
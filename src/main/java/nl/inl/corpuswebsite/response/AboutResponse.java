@@ -1,11 +1,5 @@
 package nl.inl.corpuswebsite.response;
 
-import java.io.IOException;
-import java.io.InputStream;
-
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.StringUtils;
-
 import nl.inl.corpuswebsite.BaseResponse;
 
 /** Show the about page. */
@@ -17,11 +11,7 @@ public class AboutResponse extends BaseResponse {
 
     @Override
     protected void completeRequest() {
-        try (InputStream is = servlet.getAboutPage(corpus)) {
-            model.put("content", StringUtils.join(IOUtils.readLines(is, "utf-8"), "\n"));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        model.put("content", servlet.getAboutPage(corpus));
 
         displayHtmlTemplate(servlet.getTemplate("contentpage"));
     }
@@ -1,6 +1,9 @@
 package nl.inl.corpuswebsite.response;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 
 import javax.servlet.http.HttpServletResponse;
@@ -10,6 +13,7 @@ import nl.inl.corpuswebsite.utils.ArticleUtil;
 import nl.inl.corpuswebsite.utils.CorpusConfig;
 import nl.inl.corpuswebsite.utils.QueryException;
 import nl.inl.corpuswebsite.utils.Result;
+import nl.inl.corpuswebsite.utils.WebsiteConfig;
 
 /**
  * We need a rudimentary API for some of the content that needs to processed serverside.
@@ -46,14 +50,37 @@ public class ApiResponse extends BaseResponse {
     }
 
     public void documentContents(String docId) throws QueryException {
-        new ArticleUtil(servlet, request, response).getTransformedDocument(
-            servlet.getWebsiteConfig(corpus),
-            servlet.getCorpusConfig(corpus, request, response).mapError(QueryException::wrap).getOrThrow(),
-            servlet.getGlobalConfig(),
-            docId,
-            Result.empty()
-        )
-        .tapSelf(r -> sendResult(r, "text/html; charset=utf-8"));
+        ArticleUtil articleUtil = new ArticleUtil(servlet, request, response);
+        WebsiteConfig websiteConfig = servlet.getWebsiteConfig(corpus);
+        CorpusConfig corpusConfig = servlet.getCorpusConfig(corpus, request, response).mapError(QueryException::wrap).getOrThrow();
+
+        if (servlet.useCache(request)) {
+            articleUtil.getTransformedDocument(websiteConfig, corpusConfig, servlet.getGlobalConfig(), docId, Result.empty())
+                .tapSelf(r -> sendResult(r, "text/html; charset=utf-8"));
+            return;
+        }
+
+        // Not cached anyway, so stream the document through the stylesheet into the response.
+        OutputStream[] out = new OutputStream[1];
+        articleUtil.streamTransformedDocument(websiteConfig, corpusConfig, servlet.getGlobalConfig(), docId, () -> {
+            response.setHeader("Content-Type", "text/html; charset=utf-8");
+            response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+            return out[0] = getOutputStream();
+        })
+        .tapError(e -> {
+            if (out[0] == null) {
+                sendResult(Result.error(e), "text/html; charset=utf-8");
+            } else if (!response.isCommitted()) {
+                // Started but failed before anything was sent, we can still report the error.
+                response.reset();
+                response.addHeader("Access-Control-Allow-Origin", "*");
+                sendResult(Result.error(e), "text/html; charset=utf-8");
+            } else {
+                // Too late to change the response. Don't close the stream, that would end the response as if it were complete,
+                // instead let the container abort the connection, so the client knows it's incomplete.
+                throw new RuntimeException("Error while streaming document " + docId + ", the response is incomplete", e);
+            }
+        });
     }
 
     public void documentMetadata(String docId) throws QueryException {
@@ -78,8 +105,9 @@ public class ApiResponse extends BaseResponse {
             try {
                 response.setHeader("Content-Type", contentType);
                 response.setCharacterEncoding(StandardCharsets.UTF_8.name());
-                response.getWriter().write(contents);
-                response.flushBuffer();
+                try (Writer w = new OutputStreamWriter(getOutputStream(), StandardCharsets.UTF_8)) {
+                    w.write(contents);
+                }
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
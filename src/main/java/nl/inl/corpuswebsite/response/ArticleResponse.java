@@ -1,6 +1,8 @@
 package nl.inl.corpuswebsite.response;
 
 import java.io.IOException;
+import java.util.Optional;
+import java.util.stream.Stream;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -9,6 +11,8 @@ import org.apache.commons.lang3.StringUtils;
 import nl.inl.corpuswebsite.BaseResponse;
 import nl.inl.corpuswebsite.utils.ArticleUtil;
 import nl.inl.corpuswebsite.utils.CorpusConfig;
+import nl.inl.corpuswebsite.utils.Deadline;
+import nl.inl.corpuswebsite.utils.DocumentMetadata;
 import nl.inl.corpuswebsite.utils.GlobalConfig;
 import nl.inl.corpuswebsite.utils.PaginationInfo;
 import nl.inl.corpuswebsite.utils.QueryException;
@@ -49,7 +53,7 @@ public class ArticleResponse extends BaseResponse {
         GlobalConfig config = servlet.getGlobalConfig();
 
         ArticleUtil articleUtil = new ArticleUtil(servlet, request, response);
-        Result<String, QueryException> metadata = articleUtil.getDocumentMetadata(corpusConfig, config, pid);
+        Result<DocumentMetadata, QueryException> metadata = articleUtil.getDocumentMetadata(corpusConfig, config, pid);
         PaginationInfo pagination = ArticleUtil.getPaginationInfo(corpusConfig, request, metadata);
         Result<String, QueryException> transformedMetadata = articleUtil.transformMetadata(corpus, corpusConfig, config, metadata);
         Result<String, Exception> transformedContent = articleUtil.getTransformedDocument(corpusConfig, corpus, config, pid, metadata)
@@ -60,6 +64,14 @@ public class ArticleResponse extends BaseResponse {
                 return e;
             });
 
+        // Out of time, fail with a 504 rather than a page full of errors.
+        Optional<QueryException> timeout = Stream.of(transformedMetadata.getError(), transformedContent.getError())
+                .flatMap(Optional::stream)
+                .filter(Deadline::isTimeout)
+                .map(QueryException.class::cast)
+                .findFirst();
+        if (timeout.isPresent()) throw timeout.get();
+
         model.put("article_meta", transformedMetadata.getResult().orElse(""));
         model.put("article_meta_error", transformedMetadata.getError().orElse(null));
         model.put("article_content_restricted", transformedContent.getError().filter(e -> e instanceof ArticleContentRestrictedException).isPresent());
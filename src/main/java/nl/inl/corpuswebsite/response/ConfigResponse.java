@@ -1,14 +1,18 @@
 package nl.inl.corpuswebsite.response;
 
 import java.io.OutputStreamWriter;
+import java.util.List;
 
 import com.google.gson.Gson;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
 
 import nl.inl.corpuswebsite.BaseResponse;
+import nl.inl.corpuswebsite.utils.BlackLabApi;
+import nl.inl.corpuswebsite.utils.CircuitBreaker;
 import nl.inl.corpuswebsite.utils.GlobalConfig;
 import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+import nl.inl.corpuswebsite.utils.RequestHedger;
 
 /** Show the about page. */
 public class ConfigResponse extends BaseResponse {
@@ -16,8 +20,17 @@ public class ConfigResponse extends BaseResponse {
     private static class PublicConfig {
         @Expose(serialize = false, deserialize = false)
         private final GlobalConfig config;
+        /** So operators can see whether we're currently refusing to call (one of) the BlackLab server(s). */
+        @SerializedName("blacklab_status")
+        private final List<CircuitBreaker.Status> blackLabStatus;
+        /** How often requests to BlackLab were hedged, and how often that helped. */
+        @SerializedName("blacklab_hedging")
+        private final RequestHedger.Status blackLabHedging;
+
         public PublicConfig(GlobalConfig config) {
             this.config = config;
+            this.blackLabStatus = BlackLabApi.getBackendStatus();
+            this.blackLabHedging = BlackLabApi.getHedgingStatus().orElse(null);
         }
 
         @SerializedName("BLS_URL")
@@ -55,7 +68,7 @@ public class ConfigResponse extends BaseResponse {
         response.setContentType("application/json");
 
         // Merge context into the page template and write to output stream
-        try (OutputStreamWriter osw = new OutputStreamWriter(response.getOutputStream(), OUTPUT_ENCODING)) {   
+        try (OutputStreamWriter osw = new OutputStreamWriter(getOutputStream(), OUTPUT_ENCODING)) {   
             osw.append(new Gson().toJson(new PublicConfig(servlet.getGlobalConfig())));
             osw.flush();
         } catch (Exception e) {
@@ -1,14 +1,25 @@
 package nl.inl.corpuswebsite.response;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
@@ -18,9 +29,47 @@ import org.apache.commons.io.IOUtils;
 
 import nl.inl.corpuswebsite.BaseResponse;
 import nl.inl.corpuswebsite.MainServlet;
+import nl.inl.corpuswebsite.utils.CompressingOutputStream;
+import nl.inl.corpuswebsite.utils.ExpiringCache;
+import nl.inl.corpuswebsite.utils.Result;
 
 public class CorporaDataResponse extends BaseResponse {
 
+    // Request attributes through which Tomcat offers to send a file for us, see https://tomcat.apache.org/tomcat-9.0-doc/config/http.html#Sendfile
+    private static final String SENDFILE_SUPPORTED_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+    /** A single byte range, e.g. bytes=0-499, bytes=500- or bytes=-500 */
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    /** Compressing tiny files isn't worth it, and huge ones (media) aren't compressible anyway. */
+    private static final long MIN_COMPRESS_SIZE = 1024;
+    private static final long MAX_COMPRESS_SIZE = 10 * 1024 * 1024;
+    /** Compressible types besides text/* */
+    private static final Set<String> COMPRESSIBLE_TYPES = new HashSet<>(Arrays.asList(
+            "application/javascript",
+            "application/x-javascript",
+            "application/json",
+            "application/xml",
+            "application/xhtml+xml",
+            "image/svg+xml",
+            "image/x-icon",
+            "font/ttf",
+            "font/otf",
+            "application/vnd.ms-fontobject"
+    ));
+
+    /** Total size of the compressed files we keep in memory. */
+    private static final long MAX_COMPRESSED_CACHE_SIZE = 32 * 1024 * 1024;
+    /**
+     * Files we've compressed on the fly, keyed by path, modification time and size, so a changed file is compressed again.
+     * Stale versions are never requested again and are evicted as the least recently used, as are other entries once their total size exceeds {@link #MAX_COMPRESSED_CACHE_SIZE}.
+     */
+    private static final ExpiringCache<String, Result<byte[], IOException>> COMPRESSED = new ExpiringCache<>(
+            Long.MAX_VALUE, 200, r -> r.getResult().map(b -> (long) b.length).orElse(0L), MAX_COMPRESSED_CACHE_SIZE, Result::hasResult);
+
     public CorporaDataResponse() {
         super("data", false); // allow getting static files without corpus, this normally never happens, but we clear the corpus for /default/ static files
     }
@@ -59,18 +108,187 @@ public class CorporaDataResponse extends BaseResponse {
                 return;
             }
 
-            try (InputStream is = new FileInputStream(file.get())) {
-                // Headers must be set before writing the response.
-                String mime = servlet.getServletContext().getMimeType(pathString);
-                response.setHeader("Cache-Control", "public, max-age=604800" /* 7 days */);
-                response.setHeader("Content-Length", Long.toString(file.get().length()));
+            // Headers must be set before writing the response.
+            long length = file.get().length();
+            long lastModified = file.get().lastModified() / 1000 * 1000; // http dates have second precision
+            String mime = servlet.getServletContext().getMimeType(pathString);
+
+            // Prefer a precompressed sibling (custom.js.gz), otherwise compress text-like files ourselves.
+            File gzFile = new File(file.get().getPath() + ".gz");
+            Optional<File> precompressed = gzFile.isFile() && gzFile.lastModified() >= file.get().lastModified() ? Optional.of(gzFile) : Optional.empty();
+            boolean compressible = precompressed.isPresent() || (isCompressible(mime) && length >= MIN_COMPRESS_SIZE && length <= MAX_COMPRESS_SIZE);
+            boolean gzip = compressible && CompressingOutputStream.acceptsGzip(request);
+
+            // The gzipped variant is a different representation, so it needs its own etag.
+            String etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + (gzip ? "-gzip" : "") + "\"";
+            response.setHeader("Cache-Control", "public, max-age=604800" /* 7 days */);
+            response.setHeader("ETag", etag);
+            response.setDateHeader("Last-Modified", lastModified);
+            if (compressible) response.setHeader("Vary", "Accept-Encoding");
+            if (!gzip) response.setHeader("Accept-Ranges", "bytes");
+
+            if (isNotModified(etag, lastModified)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+
+            if (gzip) {
+                // Ranges are not supported on the compressed variant, just send the whole thing.
+                response.setHeader("Content-Encoding", "gzip");
                 response.setContentType(mime);
+                if (precompressed.isPresent()) {
+                    response.setHeader("Content-Length", Long.toString(precompressed.get().length()));
+                    sendFile(precompressed.get(), 0, precompressed.get().length());
+                } else {
+                    byte[] compressed = getCompressed(file.get());
+                    response.setHeader("Content-Length", Integer.toString(compressed.length));
+                    response.getOutputStream().write(compressed);
+                }
+                return;
+            }
 
-                IOUtils.copy(is, response.getOutputStream());
+            long start = 0;
+            long end = length - 1;
+            Optional<long[]> range = getRange(etag, lastModified, length);
+            if (range.isPresent()) {
+                if (range.get().length == 0) {
+                    response.setHeader("Content-Range", "bytes */" + length);
+                    response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                    return;
+                }
+                start = range.get()[0];
+                end = range.get()[1];
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
             }
+
+            response.setHeader("Content-Length", Long.toString(end - start + 1));
+            response.setContentType(mime);
+            sendFile(file.get(), start, end - start + 1);
         } catch (InvalidPathException e1) { // runtimeException from Path.resolve; when weird paths are being requested
             response.sendError(HttpServletResponse.SC_NOT_FOUND);
             return;
         }
     }
+
+    private static boolean isCompressible(String mime) {
+        if (mime == null) return false;
+        mime = mime.toLowerCase();
+        return mime.startsWith("text/") || COMPRESSIBLE_TYPES.contains(mime.split(";")[0].trim());
+    }
+
+    /** Get the file gzipped, compressing it only the first time it's requested (for this version of the file). */
+    private static byte[] getCompressed(File file) throws IOException {
+        String key = file.getCanonicalPath() + ":" + file.lastModified() + ":" + file.length();
+        Result<byte[], IOException> compressed = COMPRESSED.get(key, () -> {
+            try (InputStream in = new FileInputStream(file)) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) (file.length() / 4));
+                try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+                    IOUtils.copy(in, gzip);
+                }
+                return Result.success(bytes.toByteArray());
+            } catch (IOException e) {
+                return Result.error(e);
+            }
+        });
+        return compressed.getOrThrow();
+    }
+
+    /**
+     * Check If-None-Match, or if absent, If-Modified-Since.
+     * @return true if the client's copy is still current
+     */
+    private boolean isNotModified(String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matchesEtag(ifNoneMatch, etag);
+        }
+        try {
+            long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            return ifModifiedSince != -1 && lastModified <= ifModifiedSince;
+        } catch (IllegalArgumentException e) { // unparseable date, ignore the header
+            return false;
+        }
+    }
+
+    /** Weak comparison of a list of etags (as sent in If-None-Match) against ours. */
+    private static boolean matchesEtag(String header, String etag) {
+        for (String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) candidate = candidate.substring(2);
+            if (candidate.equals("*") || candidate.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Parse the Range header. Only a single range is supported, multiple ranges are ignored (and the whole file is sent, as allowed by the spec).
+     * A Range is also ignored when an If-Range header is present and doesn't match the current file.
+     *
+     * @return empty if the whole file should be sent, an empty array if the range can't be satisfied, or the first and last byte (inclusive) to send.
+     */
+    private Optional<long[]> getRange(String etag, long lastModified, long length) {
+        String header = request.getHeader("Range");
+        if (header == null) return Optional.empty();
+        Matcher m = RANGE_PATTERN.matcher(header.trim());
+        if (!m.matches() || (m.group(1).isEmpty() && m.group(2).isEmpty())) return Optional.empty();
+
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange != null) {
+            boolean current;
+            if (ifRange.trim().startsWith("\"") || ifRange.trim().startsWith("W/")) {
+                current = ifRange.trim().equals(etag); // strong comparison required here
+            } else {
+                try {
+                    current = request.getDateHeader("If-Range") == lastModified;
+                } catch (IllegalArgumentException e) {
+                    current = false;
+                }
+            }
+            if (!current) return Optional.empty();
+        }
+
+        try {
+            long start, end;
+            if (m.group(1).isEmpty()) { // suffix range: the last n bytes
+                long suffix = Long.parseLong(m.group(2));
+                if (suffix == 0) return Optional.of(new long[0]);
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(m.group(1));
+                end = m.group(2).isEmpty() ? length - 1 : Long.parseLong(m.group(2));
+                if (end < start) return Optional.empty(); // invalid range, ignore the header
+                if (start >= length) return Optional.of(new long[0]);
+                end = Math.min(end, length - 1);
+            }
+            return Optional.of(new long[] { start, end });
+        } catch (NumberFormatException e) { // too large
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Write (part of) the file to the response.
+     * Tomcat (with NIO/APR connectors) can send the file itself using sendfile if we hand it the file name, in which case we don't write anything.
+     * Otherwise the file is copied into the response through a buffer, as the response is only available as a stream.
+     */
+    private void sendFile(File file, long offset, long count) throws IOException {
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTRIBUTE))) {
+            request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, file.getCanonicalPath());
+            request.setAttribute(SENDFILE_START_ATTRIBUTE, offset);
+            request.setAttribute(SENDFILE_END_ATTRIBUTE, offset + count);
+            return;
+        }
+
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            WritableByteChannel out = Channels.newChannel(response.getOutputStream());
+            while (count > 0) {
+                long transferred = in.transferTo(offset, count, out);
+                if (transferred <= 0) throw new IOException("Unexpected end of file " + file);
+                offset += transferred;
+                count -= transferred;
+            }
+        }
+    }
 }
@@ -1,8 +1,18 @@
 package nl.inl.corpuswebsite.utils;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.logging.Logger;
-import java.util.regex.Pattern;
+import java.util.function.IntPredicate;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -30,8 +40,8 @@ public class ArticleUtil {
 
     private static final Logger logger = Logger.getLogger(ArticleUtil.class.getName());
 
-    /** Matches xml open/void tags &lt;namespace:tagname attribute="value"/&gt; excluding hl tags, as those are inserted by blacklab and can result in false positives */
-    private static final Pattern XML_TAG_PATTERN = Pattern.compile("<([\\w]+:)?((?!(hl|blacklabResponse|[xX][mM][lL])\\b)[\\w.]+)(\\s+[\\w\\.:]+=\"[:/()='+\\-\\w\\s,]*\")*/?>");
+    /** How much of the document to check for xml tags before deciding to transform it. */
+    private static final int XML_SNIFF_SIZE = 64 * 1024;
 
     private final MainServlet servlet;
     private final HttpServletRequest request;
@@ -43,16 +53,18 @@ public class ArticleUtil {
         this.response = response;
     }
 
-    public Result<String, QueryException> getDocumentMetadata(WebsiteConfig corpus, GlobalConfig config, String docId) {
-        return new BlackLabApi(request, response, config)
-                .getDocumentMetadata(corpus.getCorpusId().orElseThrow(), docId)
+    public Result<DocumentMetadata, QueryException> getDocumentMetadata(WebsiteConfig corpus, GlobalConfig config, String docId) {
+        String corpusId = corpus.getCorpusId().orElseThrow();
+        return servlet.getDocumentMetadata(request, corpusId, docId, () -> new BlackLabApi(request, response, config)
+                .getDocumentMetadata(corpusId, docId)
+                .map(DocumentMetadata::new)
                 .mapError(e -> {
                     // when blacklab returns 401, we need to return a 401 to the user (unauthorized - IE you can't do this unless you log in - please log in and try again)
                     // when blacklab returns 403, we need to also return 403, (forbidden - IE you're logged in, but you're still not allowed.)
                     if (e.getHttpStatusCode() == HttpServletResponse.SC_UNAUTHORIZED) return new QueryException(HttpServletResponse.SC_UNAUTHORIZED, "Please log in to view this document.");
                     if (e.getHttpStatusCode() == HttpServletResponse.SC_FORBIDDEN) return new QueryException(HttpServletResponse.SC_FORBIDDEN, "Administrator has restricted access to this document.");
                     else return new QueryException(e.getHttpStatusCode(), "An error occurred while retrieving document contents from BlackLab: \n" + e.getMessage());
-                });
+                }));
     }
 
     public Result<String, QueryException> getDocumentContent(WebsiteConfig corpusConfig, GlobalConfig config, String docId, PaginationInfo page) {
@@ -75,13 +87,35 @@ public class ArticleUtil {
                     page.blacklabPageStart,
                     page.blacklabPageEnd
             )
-            .mapError(e -> {
-                // when blacklab returns 401, we need to return a 401 to the user (unauthorized - IE you can't do this unless you log in - please log in and try again)
-                // when blacklab returns 403, we need to also return 403, (forbidden - IE you're logged in, but you're still not allowed.)
-                if (e.getHttpStatusCode() == HttpServletResponse.SC_UNAUTHORIZED) return new QueryException(HttpServletResponse.SC_UNAUTHORIZED, "Please log in to view this document.");
-                if (e.getHttpStatusCode() == HttpServletResponse.SC_FORBIDDEN) return new QueryException(HttpServletResponse.SC_FORBIDDEN, "Documents in this corpus cannot be displayed, because the owner has disabled this feature.");
-                else return new QueryException(e.getHttpStatusCode(), "An error occurred while retrieving document contents from BlackLab: \n" + e.getMessage());
-            });
+            .mapError(ArticleUtil::documentContentError);
+    }
+
+    /** Like {@link #getDocumentContent}, but doesn't read the contents. The caller must close the stream. */
+    public Result<InputStream, QueryException> getDocumentContentStream(WebsiteConfig corpusConfig, GlobalConfig config, String docId, PaginationInfo page) {
+        Optional<String> fieldToShow = getParameter("field", request);
+        Optional<String> fieldToSearch = getParameter("searchfield", request);
+        Optional<String> queryTargetField = fieldToSearch.isPresent() ? fieldToShow : Optional.empty();
+
+        return new BlackLabApi(request, response, config)
+            .getDocumentContentsStream(
+                    corpusConfig.getCorpusId().orElseThrow(),
+                    docId,
+                    fieldToShow,
+                    fieldToSearch,
+                    optTargetField(getParameter("query", request), queryTargetField),
+                    getParameter("pattgapdata", request),
+                    page.blacklabPageStart,
+                    page.blacklabPageEnd
+            )
+            .mapError(ArticleUtil::documentContentError);
+    }
+
+    private static QueryException documentContentError(QueryException e) {
+        // when blacklab returns 401, we need to return a 401 to the user (unauthorized - IE you can't do this unless you log in - please log in and try again)
+        // when blacklab returns 403, we need to also return 403, (forbidden - IE you're logged in, but you're still not allowed.)
+        if (e.getHttpStatusCode() == HttpServletResponse.SC_UNAUTHORIZED) return new QueryException(HttpServletResponse.SC_UNAUTHORIZED, "Please log in to view this document.");
+        if (e.getHttpStatusCode() == HttpServletResponse.SC_FORBIDDEN) return new QueryException(HttpServletResponse.SC_FORBIDDEN, "Documents in this corpus cannot be displayed, because the owner has disabled this feature.");
+        else return new QueryException(e.getHttpStatusCode(), "An error occurred while retrieving document contents from BlackLab: \n" + e.getMessage());
     }
 
     /**
@@ -105,18 +139,21 @@ public class ArticleUtil {
      * @param trans
      * @param config
      * @param corpus
+     * @return the transformer with the parameters set (the transformer passed in is shared and immutable)
      */
-    private void addStandardXsltParameters(XslTransformer trans, GlobalConfig config, WebsiteConfig corpus) {
+    private XslTransformer withStandardXsltParameters(XslTransformer trans, GlobalConfig config, WebsiteConfig corpus) {
         String baseUrl = config.get(Keys.CF_URL_ON_CLIENT);
         String corpusId = corpus.getCorpusId().orElseThrow();
         String corpusUrl = baseUrl + "/" + corpus.getCorpusId().orElseThrow();
 
+        Map<String, String> params = new HashMap<>();
         // contextRoot is deprecated, but still used in some stylesheets.
-        trans.addParameter("contextRoot", baseUrl);
-        trans.addParameter("contextPath", baseUrl);
-        trans.addParameter("corpusId", corpusId);
-        trans.addParameter("corpusPath", corpusUrl);
-        corpus.getXsltParameters().forEach(trans::addParameter);
+        params.put("contextRoot", baseUrl);
+        params.put("contextPath", baseUrl);
+        params.put("corpusId", corpusId);
+        params.put("corpusPath", corpusUrl);
+        params.putAll(corpus.getXsltParameters());
+        return trans.withParameters(params);
     }
 
     /**
@@ -133,14 +170,98 @@ public class ArticleUtil {
             CorpusConfig corpusMetadata,
             GlobalConfig config,
             String docId,
-            Result<String, QueryException> docMetadata
+            Result<DocumentMetadata, QueryException> docMetadata
     ) {
-        // Metadata required for pagination (need to know document length)
-        Result<String, QueryException> metadata = docMetadata.or(() -> getDocumentMetadata(corpus, config, docId));
+        // Everything that determines the output, normalized the same way as when we use them below.
+        // Checked before contacting BlackLab, so a hit doesn't need the metadata (which would be the same anyway).
+        List<Object> cacheKey = Arrays.asList(
+                corpus.getCorpusId().orElseThrow(),
+                docId,
+                getParameter("field", request),
+                getParameter("searchfield", request),
+                getParameter("query", request),
+                getParameter("pattgapdata", request),
+                getIntParameter("wordstart", request),
+                getIntParameter("wordend", request),
+                getIntParameter("findhit", request),
+                corpus.getPageSize(),
+                corpusMetadata.getCorpusDataFormat(),
+                servlet.getStylesheetVersion(),
+                corpus.getXsltParameters(),
+                config.get(Keys.CF_URL_ON_CLIENT)
+        );
+
+        return servlet.getCachedArticle(request, cacheKey, () -> {
+            // Metadata required for pagination (need to know document length)
+            Result<DocumentMetadata, QueryException> metadata = docMetadata.or(() -> getDocumentMetadata(corpus, config, docId));
+            PaginationInfo pagination = getPaginationInfo(corpus, request, metadata);
+            Result<String, QueryException> contents = getDocumentContent(corpus, config, docId, pagination);
+
+            return transformDocument(corpus, corpusMetadata, config, contents);
+        });
+    }
+
+    /**
+     * Transform the document into the output while it's coming in from BlackLab, instead of holding it in memory (several times over) like {@link #getTransformedDocument}.
+     * Nothing is cached, so only use this when getTransformedDocument wouldn't cache the result either.
+     * Documents that don't look like xml are still read completely, as they are not transformed anyway.
+     *
+     * @param output opened once the transformation starts. Errors before that point are returned without touching the response.
+     * @return true if the document was written. If an error is returned after the output was opened, the output has not been closed.
+     */
+    public Result<Boolean, QueryException> streamTransformedDocument(
+            WebsiteConfig corpus,
+            CorpusConfig corpusMetadata,
+            GlobalConfig config,
+            String docId,
+            Result.ThrowableSupplier<OutputStream, IOException> output
+    ) {
+        Result<DocumentMetadata, QueryException> metadata = getDocumentMetadata(corpus, config, docId);
         PaginationInfo pagination = getPaginationInfo(corpus, request, metadata);
-        Result<String, QueryException> contents = getDocumentContent(corpus, config, docId, pagination);
+        // Before opening the document: that holds a connection to BlackLab until we're done with it,
+        // and loading the stylesheet may need another one (which might never come when they're all held this way).
+        // Only reported when the document turns out to be xml, the stylesheet isn't needed otherwise.
+        Result<XslTransformer, QueryException> trans = servlet.getStylesheet(corpusMetadata, "article", request, response)
+                .map(t -> this.withStandardXsltParameters(t, config, corpus))
+                .mapError(e -> new QueryException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "An error occurred while loading the stylesheet: \n" + e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e)));
+
+        return getDocumentContentStream(corpus, config, docId, pagination).flatMap(body -> {
+            try (InputStream in = new BufferedInputStream(body, XML_SNIFF_SIZE)) {
+                in.mark(XML_SNIFF_SIZE);
+                String prefix = new String(in.readNBytes(XML_SNIFF_SIZE), StandardCharsets.UTF_8);
+                in.reset();
+                Deadline.of(request).check("transforming the document").getOrThrow();
+
+                if (!looksLikeXml(prefix)) {
+                    // Not (obviously) xml, the whole thing needs to be checked and then escaped anyway.
+                    Result<String, QueryException> transformed = transformDocument(corpus, corpusMetadata, config, Result.success(AuthRequest.readBody(in)));
+                    if (transformed.hasError()) return Result.error(transformed.getError().get());
+                    try (OutputStream out = output.apply()) {
+                        out.write(transformed.getResult().get().getBytes(StandardCharsets.UTF_8));
+                    }
+                    return Result.success(true);
+                }
 
-        return transformDocument(corpus, corpusMetadata, config, contents);
+                if (trans.hasError()) return Result.error(trans.getError().get());
+
+                OutputStream out = output.apply();
+                trans.getResult().get().transform(in, out, Deadline.of(request));
+                out.close();
+                return Result.success(true);
+            } catch (QueryException e) {
+                Deadline.of(request).throwIfCancelled();
+                return Result.error(e);
+            } catch (RequestCancelledException e) {
+                throw e;
+            } catch (Exception e) {
+                // The document or the connection to our client was closed because the client went away.
+                Deadline.of(request).throwIfCancelled();
+                if (Deadline.of(request).isExpired()) return Result.error(Deadline.exceeded("transforming the document"));
+                // BlackLab stopped sending the document.
+                if (ExceptionUtils.indexOfType(e, HttpTimeoutException.class) >= 0) return Result.error(new QueryException(e, HttpServletResponse.SC_GATEWAY_TIMEOUT));
+                return Result.error(new QueryException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "An error occurred while transforming document contents: \n" + e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e)));
+            }
+        });
     }
 
     public Result<String, QueryException> getTransformedMetadata(
@@ -149,14 +270,16 @@ public class ArticleUtil {
         GlobalConfig config,
         String docId
     ) {
-        Result<String, QueryException> meta = getDocumentMetadata(corpusConfig, config, docId);
+        Result<DocumentMetadata, QueryException> meta = getDocumentMetadata(corpusConfig, config, docId);
         return transformMetadata(corpus, corpusConfig, config, meta);
     }
 
     private Result<String, QueryException> transformDocument(WebsiteConfig corpus, CorpusConfig corpusMetadata, GlobalConfig config, Result<String, QueryException> contents) {
-        return contents.flatMap(c -> {
+        return contents
+        .flatMap(c -> Deadline.of(request).check("transforming the document").map(__ -> c))
+        .flatMap(c -> {
             // If the document contents aren't xml, don't bother with the transformer.
-            if (!XML_TAG_PATTERN.matcher(c).find()) {
+            if (!looksLikeXml(c)) {
                 return Result.success("<pre>" + StringUtils.replaceEach(c,
                         new String[]{"<hl>", "</hl>"},
                         new String[]{"<span class=\"hl\">", "</span>"}
@@ -166,19 +289,99 @@ public class ArticleUtil {
             // we managed to get the contents, and they're definitely xml.
             // Load the transformer.
             return servlet.getStylesheet(corpusMetadata, "article", request, response)
-                    .tap(trans -> this.addStandardXsltParameters(trans, config, corpus))
-                    .mapWithErrorHandling(trans -> trans.transform(c))
-                    .mapError(e -> new QueryException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "An error occurred while transforming document contents: \n" + e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e)));
+                    .map(trans -> this.withStandardXsltParameters(trans, config, corpus))
+                    .mapWithErrorHandling(trans -> trans.transform(c, Deadline.of(request)))
+                    .mapError(e -> Deadline.of(request).isExpired()
+                            ? Deadline.exceeded("transforming the document")
+                            : new QueryException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "An error occurred while transforming document contents: \n" + e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e)));
         });
     }
 
-    public Result<String, QueryException> transformMetadata(CorpusConfig corpus, WebsiteConfig corpusConfig, GlobalConfig config, Result<String, QueryException> metadata) {
-        return metadata.flatMap(md ->
-            servlet.getStylesheet(corpus,"meta",request, response)
-            .tap(trans -> this.addStandardXsltParameters(trans, config, corpusConfig))
-            .mapWithErrorHandling(trans -> trans.transform(md))
-            .mapError(e -> new QueryException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "An error occurred while transforming document metadata contents: \n" + e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e)))
+    public Result<String, QueryException> transformMetadata(CorpusConfig corpus, WebsiteConfig corpusConfig, GlobalConfig config, Result<DocumentMetadata, QueryException> metadata) {
+        // The metadata may be cached, in which case it keeps the transformed version for as long as the stylesheet and its parameters are unchanged.
+        List<Object> transformKey = Arrays.asList(
+                corpus.getCorpusDataFormat(),
+                servlet.getStylesheetVersion(),
+                corpusConfig.getXsltParameters(),
+                config.get(Keys.CF_URL_ON_CLIENT)
         );
+
+        return metadata.flatMap(md -> md.getTransformed(transformKey, () ->
+            Deadline.of(request).check("transforming the document metadata").flatMap(__ ->
+                servlet.getStylesheet(corpus,"meta",request, response)
+                .map(trans -> this.withStandardXsltParameters(trans, config, corpusConfig))
+                .mapWithErrorHandling(trans -> trans.transform(md.getSource(), Deadline.of(request)))
+                .mapError(e -> Deadline.of(request).isExpired()
+                        ? Deadline.exceeded("transforming the document metadata")
+                        : new QueryException(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "An error occurred while transforming document metadata contents: \n" + e.getMessage() + "\n" + ExceptionUtils.getStackTrace(e)))
+            )
+        ));
+    }
+
+    /**
+     * Whether the start of the text (the first {@link #XML_SNIFF_SIZE} characters) contains an xml open/void tag &lt;namespace:tagname attribute="value"/&gt;,
+     * excluding hl tags, as those are inserted by blacklab and can result in false positives (and blacklabResponse and xml declarations).
+     * <br>
+     * Accepts exactly what the regex <code>&lt;([\w]+:)?((?!(hl|blacklabResponse|[xX][mM][lL])\b)[\w.]+)(\s+[\w\.:]+="[:/()='+\-\w\s,]*")*&#47;?&gt;</code> we used before,
+     * but in a single pass: an attempt at a tag never reads past the next '&lt;', so every character is looked at about once.
+     */
+    private static boolean looksLikeXml(CharSequence text) {
+        int end = Math.min(text.length(), XML_SNIFF_SIZE);
+        for (int i = 0; i < end; ++i) {
+            if (text.charAt(i) == '<' && isTag(text, i + 1, end)) return true;
+        }
+        return false;
+    }
+
+    /** @param i the position after the '&lt;' */
+    private static boolean isTag(CharSequence text, int i, int end) {
+        // optional namespace: \w+:
+        int j = skip(text, i, end, ArticleUtil::isWordChar);
+        if (j > i && j < end && text.charAt(j) == ':') i = j + 1;
+
+        // tag name, that is not one of the excluded ones
+        int nameEnd = skip(text, i, end, c -> isWordChar(c) || c == '.');
+        if (nameEnd == i || startsWithWord(text, i, end, "hl", false) || startsWithWord(text, i, end, "blacklabResponse", false) || startsWithWord(text, i, end, "xml", true)) return false;
+        i = nameEnd;
+
+        // attributes: \s+name="value"
+        while (i < end && isWhitespace(text.charAt(i))) {
+            i = skip(text, i, end, ArticleUtil::isWhitespace);
+            int attrEnd = skip(text, i, end, c -> isWordChar(c) || c == '.' || c == ':');
+            if (attrEnd == i || attrEnd + 1 >= end || text.charAt(attrEnd) != '=' || text.charAt(attrEnd + 1) != '"') return false;
+            i = skip(text, attrEnd + 2, end, c -> isWordChar(c) || isWhitespace(c) || ":/()='+-,".indexOf(c) >= 0);
+            if (i >= end || text.charAt(i) != '"') return false;
+            ++i;
+        }
+
+        if (i < end && text.charAt(i) == '/') ++i;
+        return i < end && text.charAt(i) == '>';
+    }
+
+    private static int skip(CharSequence text, int i, int end, IntPredicate include) {
+        while (i < end && include.test(text.charAt(i))) ++i;
+        return i;
+    }
+
+    /** Whether the text at i is the word, followed by a word boundary. */
+    private static boolean startsWithWord(CharSequence text, int i, int end, String word, boolean ignoreCase) {
+        if (i + word.length() > end) return false;
+        for (int k = 0; k < word.length(); ++k) {
+            char c = text.charAt(i + k);
+            if (ignoreCase ? Character.toLowerCase(c) != word.charAt(k) : c != word.charAt(k)) return false;
+        }
+        int after = i + word.length();
+        return after >= text.length() || !isWordChar(text.charAt(after));
+    }
+
+    /** Like \w in regular expressions (ascii only) */
+    private static boolean isWordChar(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /** Like \s in regular expressions */
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
     }
 
     public static Optional<String> getParameter(String name, HttpServletRequest request) {
@@ -196,7 +399,7 @@ public class ArticleUtil {
         });
     }
 
-    public static PaginationInfo getPaginationInfo(WebsiteConfig corpusConfig, HttpServletRequest request, Result<String, QueryException> documentMetadata) {
+    public static PaginationInfo getPaginationInfo(WebsiteConfig corpusConfig, HttpServletRequest request, Result<DocumentMetadata, QueryException> documentMetadata) {
         Optional<Integer> pageSize = corpusConfig.getPageSize();
         Optional<Integer> pageStart = getIntParameter("wordstart", request);
         Optional<Integer> pageEnd = getIntParameter("wordend", request);
@@ -1,27 +1,76 @@
 package nl.inl.corpuswebsite.utils;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.URI;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.StringUtils;
+import org.apache.commons.io.input.CountingInputStream;
+
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
 
 /** Factory pattern url builder */
 class URLBuilder<T extends URLBuilder<T>> {
+    // Shared by all requests, so connections to BlackLab are kept alive and reused. See AuthRequest#configure.
+    static HttpClient client = createClient(Duration.ofSeconds(10), false);
+    static Duration connectTimeout = Duration.ofSeconds(10);
+    static Duration readTimeout = Duration.ofSeconds(60);
+    static Semaphore connectionPermits = new Semaphore(50);
+    /** Closes response bodies that stop coming in, see {@link TimedBody}. Its thread goes away when there's nothing to watch. */
+    private static final ScheduledThreadPoolExecutor timer = createTimer();
+
+    private static ScheduledThreadPoolExecutor createTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "blacklab-read-timeout");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.setKeepAliveTime(1, TimeUnit.MINUTES);
+        timer.allowCoreThreadTimeOut(true);
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    static HttpClient createClient(Duration connectTimeout, boolean http2) {
+        return HttpClient.newBuilder()
+                .connectTimeout(connectTimeout)
+                .version(http2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                // We follow redirects ourselves, so headers and cookies are sent along (and so we can follow them from http to https).
+                .followRedirects(HttpClient.Redirect.NEVER)
+                .build();
+    }
+
     protected String url;
     protected Map<String, String> headers;
     protected Map<String, String> cookies;
@@ -29,6 +78,8 @@ class URLBuilder<T extends URLBuilder<T>> {
 
     protected String hash;
     protected String method = "GET";
+    /** Timeouts are shortened to the time left until this. */
+    protected Deadline deadline = Deadline.NONE;
 
     public URLBuilder() {};
 
@@ -42,6 +93,11 @@ class URLBuilder<T extends URLBuilder<T>> {
         return (T) this;
     }
 
+    public T deadline(Deadline deadline) {
+        this.deadline = deadline;
+        return (T) this;
+    }
+
     public T url(String base, String... paths) {
         if (base.contains("#")) {
             String[] parts = base.split("#");
@@ -173,28 +229,196 @@ class URLBuilder<T extends URLBuilder<T>> {
                 + (hash != null ? "#" + URLEncoder.encode(hash, StandardCharsets.UTF_8) : "");
     }
 
-    public HttpURLConnection connect() throws QueryException {
+    /**
+     * Send the request.
+     * Redirects are not followed, see {@link AuthRequest#request(boolean)}.
+     * The body must always be closed (preferably after reading it completely, so the connection can be reused),
+     * it holds one of the connection permits until then.
+     */
+    public HttpResponse<InputStream> send() throws QueryException {
+        deadline.throwIfCancelled();
+        if (deadline.isExpired()) throw Deadline.exceeded("waiting for BlackLab");
+
+        HttpRequest.Builder builder;
         try {
-            URL urlObj = new URL(getUrl());
-            HttpURLConnection connection = (HttpURLConnection) urlObj.openConnection();
-            connection.setInstanceFollowRedirects(true);
-            connection.setRequestMethod(method);
-
-            if (headers != null) {
-                for (Entry<String, String> header: headers.entrySet()) {
-                    connection.addRequestProperty(header.getKey(), header.getValue());
-                }
-                if (cookies != null) {
-                    connection.addRequestProperty("Cookie", cookies.entrySet().stream().map(c -> c.getKey() + "=" + c.getValue()).collect(Collectors.joining(";")));
-                }
+            builder = HttpRequest.newBuilder(URI.create(getUrl()))
+                    .method(method, HttpRequest.BodyPublishers.noBody())
+                    .timeout(deadline.limit(readTimeout));
+        } catch (IllegalArgumentException e) {
+            throw QueryException.wrap(e, "Invalid url " + url);
+        }
+
+        if (headers != null) {
+            for (Entry<String, String> header: headers.entrySet()) {
+                builder.header(header.getKey(), header.getValue());
             }
+        }
+        if (headers == null || headers.keySet().stream().noneMatch("Accept-Encoding"::equalsIgnoreCase)) {
+            // Decompressed in AuthRequest#decompress
+            builder.header("Accept-Encoding", "gzip, deflate");
+        }
+        if (cookies != null) {
+            builder.header("Cookie", cookies.entrySet().stream().map(c -> c.getKey() + "=" + c.getValue()).collect(Collectors.joining(";")));
+        }
 
-            connection.connect();
-            return connection;
-        } catch (IOException e) {
+        Runnable release = acquireConnection();
+        Duration bodyTimeout = readTimeout;
+        CompletableFuture<HttpResponse<InputStream>> pending = client.sendAsync(builder.build(), info -> HttpResponse.BodySubscribers.mapping(HttpResponse.BodySubscribers.ofInputStream(), in -> new TimedBody(in, release, url, bodyTimeout, deadline)));
+        // When our client goes away, stop waiting for BlackLab (and stop reading what it sends).
+        deadline.onCancel(() -> pending.cancel(true));
+        try {
+            HttpResponse<InputStream> r = pending.get();
+            deadline.onCancel(() -> closeQuietly(r.body()));
+            return r;
+        } catch (CancellationException e) {
+            release.run();
+            throw new RequestCancelledException();
+        } catch (InterruptedException e) {
+            release.run();
+            Thread.currentThread().interrupt();
+            throw QueryException.wrap(e, "Interrupted while connecting to url " + url);
+        } catch (ExecutionException e) {
+            release.run();
+            Throwable cause = e.getCause();
+            if (cause instanceof HttpTimeoutException) {
+                throw deadline.isExpired() ? Deadline.exceeded("waiting for BlackLab") : new QueryException((Exception) cause, HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            }
+            throw QueryException.wrap(cause instanceof Exception ? (Exception) cause : e, "Error connecting to url " + url);
+        } catch (RuntimeException e) {
+            release.run();
             throw QueryException.wrap(e, "Error connecting to url " + url);
         }
     }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // nothing to do, we're giving up on it anyway
+        }
+    }
+
+    /**
+     * The body of a response. The client's timeout only covers the wait for the headers,
+     * so this closes the body when nothing comes in for the read timeout, or when the deadline passes,
+     * otherwise a server that stalls halfway would hold on to our thread indefinitely.
+     * Reading then fails with an HttpTimeoutException.
+     * Closing it gives back the connection permit.
+     */
+    private static class TimedBody extends FilterInputStream {
+        private final Runnable release;
+        private final String url;
+        private final long timeoutNanos;
+        private final Deadline deadline;
+
+        private volatile long lastRead = System.nanoTime();
+        private volatile boolean timedOut;
+        /** Guarded by this. */
+        private boolean closed;
+        /** Guarded by this. */
+        private ScheduledFuture<?> check;
+
+        TimedBody(InputStream in, Runnable release, String url, Duration timeout, Deadline deadline) {
+            super(in);
+            this.release = release;
+            this.url = url;
+            this.timeoutNanos = timeout.toNanos();
+            this.deadline = deadline;
+            schedule(timeoutNanos);
+        }
+
+        /** Check again after the delay, or when the deadline passes if that's sooner. */
+        private synchronized void schedule(long delayNanos) {
+            if (!closed) check = timer.schedule(this::check, deadline.limit(Duration.ofNanos(delayNanos)).toNanos(), TimeUnit.NANOSECONDS);
+        }
+
+        private void check() {
+            long left = timeoutNanos - (System.nanoTime() - lastRead);
+            if (left > 0 && !deadline.isExpired()) {
+                schedule(left);
+                return;
+            }
+            timedOut = true;
+            closeQuietly(this);
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                int b = super.read();
+                lastRead = System.nanoTime();
+                return b;
+            } catch (IOException e) {
+                throw timedOut(e);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            try {
+                int n = super.read(b, off, len);
+                lastRead = System.nanoTime();
+                return n;
+            } catch (IOException e) {
+                throw timedOut(e);
+            }
+        }
+
+        private IOException timedOut(IOException e) {
+            if (!timedOut) return e;
+            IOException t = deadline.isExpired()
+                    ? new HttpTimeoutException("Ran out of time while reading the response from " + url)
+                    : new HttpTimeoutException("No data received from " + url + " for " + TimeUnit.NANOSECONDS.toSeconds(timeoutNanos) + " seconds");
+            t.initCause(e);
+            return t;
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                closed = true;
+                if (check != null) check.cancel(false);
+            }
+            try {
+                super.close();
+            } finally {
+                release.run();
+            }
+        }
+    }
+
+    /** Wait for a connection permit. The returned Runnable gives it back, it may safely be called more than once. */
+    private Runnable acquireConnection() throws QueryException {
+        Semaphore permits = connectionPermits;
+        try {
+            if (!permits.tryAcquire(deadline.limit(connectTimeout).toMillis(), TimeUnit.MILLISECONDS)) {
+                if (deadline.isExpired()) throw Deadline.exceeded("waiting for a connection to BlackLab");
+                throw new QueryException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many concurrent requests to " + url);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw QueryException.wrap(e, "Interrupted while connecting to url " + url);
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        return () -> {
+            if (released.compareAndSet(false, true)) permits.release();
+        };
+    }
+
+    /** Read the (remaining) body and close it. */
+    static String readBody(InputStream body) throws QueryException {
+        try (InputStream in = body) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw readError(e, "Error reading response");
+        }
+    }
+
+    /** A 504 if the server stopped sending (see {@link TimedBody}), otherwise a 500. */
+    static QueryException readError(IOException e, String message) {
+        if (e instanceof HttpTimeoutException) return new QueryException(e, HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        return QueryException.wrap(e, message);
+    }
 }
 
 /** 
@@ -210,12 +434,26 @@ class URLBuilder<T extends URLBuilder<T>> {
  * For more advanced authentication methods, no special logic exists, no ReturnToClientException is thrown, and the 401/403 is simply returned to the caller.
  */
 public class AuthRequest extends URLBuilder<AuthRequest> {
+    private static final Logger logger = Logger.getLogger(AuthRequest.class.getName());
+
+    /** Headers that apply to the connection with BlackLab, these must not be copied to our response. */
+    private static final Set<String> HOP_BY_HOP_HEADERS = Set.of("connection", "keep-alive", "transfer-encoding", "content-length", "upgrade", "content-encoding");
+
+    // How much we've saved by requesting compressed responses, logged every so often.
+    private static final AtomicLong compressedResponses = new AtomicLong();
+    private static final AtomicLong compressedBytes = new AtomicLong();
+    private static final AtomicLong uncompressedBytes = new AtomicLong();
+
     /** May be null */
     private final HttpServletRequest request;
     /** May be null. */
     private final HttpServletResponse response;
 
-    private String method = "GET";
+    /** See {@link #requestCoalesced(boolean)} */
+    private static final SingleFlight<String, Result<String, QueryException>> IN_FLIGHT = new SingleFlight<>();
+
+    /** May be null, then requests are always made. */
+    private CircuitBreaker circuitBreaker;
 
     /** Standard request without authentication support. We don't need the config if we're not going to communicate to the client. */
     public AuthRequest(String url) {
@@ -224,20 +462,36 @@ public class AuthRequest extends URLBuilder<AuthRequest> {
         this.response = null;
     }
 
+    /** The request's {@link Deadline} (if it has one) applies to this request. */
     public AuthRequest(HttpServletRequest request, HttpServletResponse response) {
         super();
         this.request = request;
         this.response = response;
+        this.deadline = Deadline.of(request);
     }
 
+    /** The request's {@link Deadline} (if it has one) applies to this request. */
     public AuthRequest(HttpServletRequest request, HttpServletResponse response, String url) {
         super(url);
         this.request = request;
         this.response = response;
+        this.deadline = Deadline.of(request);
     }
 
-    public AuthRequest method(String method) {
-        this.method = method;
+    /**
+     * Configure the http client shared by all requests. Called once on startup.
+     * Connections are pooled and kept alive per host by the client, the number of concurrent requests is limited by maxConnections.
+     */
+    public static void configure(GlobalConfig config) {
+        connectTimeout = Duration.ofSeconds(Math.max(1, config.getInt(Keys.BLS_CONNECT_TIMEOUT)));
+        readTimeout = Duration.ofSeconds(Math.max(1, config.getInt(Keys.BLS_READ_TIMEOUT)));
+        connectionPermits = new Semaphore(Math.max(1, config.getInt(Keys.BLS_MAX_CONNECTIONS)));
+        client = createClient(connectTimeout, config.getBool(Keys.BLS_HTTP2));
+    }
+
+    /** Guard this request with the breaker: refuse it while the breaker is open, and report the outcome to it. */
+    public AuthRequest circuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
         return this;
     }
 
@@ -251,28 +505,92 @@ public class AuthRequest extends URLBuilder<AuthRequest> {
      * A 401 might still be returned if the content is restricted for another reason rather than missing auth (or when invalid authentication is supplied).
      *
      * @param hardFailOnMissingAuth iff true and the upstream returns a 401 not authorized, it will be forwarded as-is to the client. If false, a regular 401 QueryException will be returned in the Result.
+     *                              Ignored when this request was created without a client response to forward to.
      *
      * @throws ReturnToClientException when authentication is required but not provided. The response is modified to add the www-authorization header prior to throwing.
      */
     public Result<String, QueryException> request(boolean hardFailOnMissingAuth) {
+        return requestStream(hardFailOnMissingAuth).flatMap(body -> {
+            try {
+                return Result.success(readBody(body));
+            } catch (QueryException e) {
+                deadline.throwIfCancelled(); // then the body was closed on us
+                return Result.error(e);
+            }
+        });
+    }
+
+    /**
+     * Like {@link #request(boolean)}, but identical concurrent GET requests share a single call to the server and its result.
+     * Requests are identical when the url, headers and cookies are (so they also carry the same credentials).
+     * Nothing is kept once the call completes, this is not a cache.
+     * Waiting for a call that's already running is limited by this request's own deadline.
+     * Cancelling this request only cancels the call when no other request is waiting for it.
+     */
+    public Result<String, QueryException> requestCoalesced(boolean hardFailOnMissingAuth) {
+        if (!"GET".equalsIgnoreCase(method)) return request(hardFailOnMissingAuth);
+        String key = String.join("\n", getUrl(), String.valueOf(headers != null ? new TreeMap<>(headers) : null), String.valueOf(cookies != null ? new TreeMap<>(cookies) : null), String.valueOf(hardFailOnMissingAuth));
+        return IN_FLIGHT.load(key, shared -> {
+            Deadline own = deadline;
+            deadline = shared;
+            try {
+                return request(hardFailOnMissingAuth);
+            } finally {
+                deadline = own;
+            }
+        }, deadline, () -> Result.error(Deadline.exceeded("waiting for BlackLab")));
+    }
+
+    /**
+     * Like {@link #request(boolean)}, but returns the body of a successful response without reading it, so it can be processed while it's coming in.
+     * The caller must close the stream.
+     */
+    public Result<InputStream, QueryException> requestStream(boolean hardFailOnMissingAuth) {
+        // Don't involve the breaker, this is not BlackLab's fault.
+        if (deadline.isExpired()) return Result.error(Deadline.exceeded("waiting for BlackLab"));
+        if (circuitBreaker == null) return doRequestStream(hardFailOnMissingAuth);
+        Optional<CircuitBreaker.Permit> permit = circuitBreaker.tryAcquire();
+        if (permit.isEmpty()) {
+            return Result.error(new QueryException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "BlackLab is currently not responding, please try again later."));
+        }
+
+        long start = System.currentTimeMillis();
+        boolean failure = true;
         try {
-            HttpURLConnection r = connect();
+            Result<InputStream, QueryException> r = doRequestStream(hardFailOnMissingAuth);
+            // If we ran out of time, the server might just not have been given enough of it.
+            failure = r.getError().filter(AuthRequest::isServerFailure).isPresent() && !deadline.isExpired();
+            return r;
+        } catch (ReturnToClientException | RequestCancelledException e) {
+            failure = false;
+            throw e;
+        } finally {
+            circuitBreaker.record(permit.get(), failure, System.currentTimeMillis() - start);
+        }
+    }
+
+    /** Whether the error is a problem with the server itself (could not connect, timed out, server error), rather than with the request (404, 401 etc.) */
+    static boolean isServerFailure(QueryException e) {
+        return e.getHttpStatusCode() >= 500 || e.getHttpStatusCode() < 100;
+    }
+
+    private Result<InputStream, QueryException> doRequestStream(boolean hardFailOnMissingAuth) {
+        try {
+            HttpResponse<InputStream> r = send();
             int redirects = 0;
             while (redirects < 10) {
-                int code = r.getResponseCode();
-                if (code == -1)
-                    return Result.error(new QueryException(-1, "Unexpected response from url " + url));
+                int code = r.statusCode();
 
-                // redirect is not followed into other protocol ex. http to https
-                // see https://stackoverflow.com/a/1884427
                 if (code >= 300 && code < 400) {
-                    String newUrl = r.getHeaderField("location");
-                    if (newUrl != null && !newUrl.isEmpty()) {
-                        r = new URLBuilder<>(newUrl) // should already contain query and hash
+                    Optional<String> newUrl = r.headers().firstValue("location").filter(l -> !l.isEmpty());
+                    if (newUrl.isPresent()) {
+                        readBody(r.body());
+                        r = new URLBuilder<>(r.uri().resolve(newUrl.get()).toString()) // should already contain query and hash
                                 .method(this.method)
-                                .headers(this.headers)
-                                .cookies(this.cookies)
-                                .connect();
+                                .headers(this.headers != null ? this.headers : Map.of())
+                                .cookies(this.cookies != null ? this.cookies : Map.of())
+                                .deadline(this.deadline)
+                                .send();
                         ++redirects;
                         continue;
                     }
@@ -281,46 +599,84 @@ public class AuthRequest extends URLBuilder<AuthRequest> {
                 // in all cases this request is performed on behalf of a user's request to this application
                 // therefor, if this request fails because of missing authentication, we should forward the request for authentication to the client.
                 // if there is a www-authenticate header, we should forward it to the user
-                if (hardFailOnMissingAuth && r.getHeaderField("www-authenticate") != null) {
-                    r.getHeaderFields().forEach((k, v) -> v.forEach(w -> response.addHeader(k, w)));
-                    InputStream s = r.getErrorStream() != null ? r.getErrorStream() : r.getInputStream();
-                    String content = IOUtils.toString(s, "utf-8");
+                if (hardFailOnMissingAuth && response != null && r.headers().firstValue("www-authenticate").isPresent()) {
+                    String content = readBody(decompress(r));
+                    r.headers().map().forEach((k, v) -> {
+                        if (!k.startsWith(":") && !HOP_BY_HOP_HEADERS.contains(k.toLowerCase())) v.forEach(w -> response.addHeader(k, w));
+                    });
                     throw new ReturnToClientException(code, content);
                 }
 
                 return decode(r);
             }
+            readBody(r.body());
             return Result.error(new QueryException(HttpServletResponse.SC_BAD_GATEWAY, "Too many redirects"));
-        } catch (IOException | QueryException e) {
-            return Result.error(QueryException.wrap(e));
+        } catch (QueryException e) {
+            return Result.error(e);
         }
     }
 
     /**
-     * Decode the result (or error), returning the contents in the String if it's a success.
+     * Decode the result (or error), returning the body if it's a success.
      * Returns a queryException containing the httpcode and body if it's an error.
-     * If an ioerror occurs, it's wrapped in a queryexception with code 500.
      *
-     * @param conn the connection holding the response.
+     * @param r the response.
      *
      * @return the result of the above.
      */
-    protected static Result<String, QueryException> decode(HttpURLConnection conn) {
+    protected static Result<InputStream, QueryException> decode(HttpResponse<InputStream> r) throws QueryException {
+        int code = r.statusCode();
+        if (code == 204) {
+            readBody(r.body());
+            return Result.success(InputStream.nullInputStream());
+        } else if (code >= 200 && code < 300) {
+            return Result.success(decompress(r));
+        }
+
+        String body = readBody(decompress(r));
+        if (code >= 400 && !body.isEmpty()) {
+            return Result.error(new QueryException(code, body));
+        } else {
+            return Result.error(new QueryException(code, "Unexpected response (http " + code + ") from url " + r.uri()));
+        }
+    }
+
+    /**
+     * Get the body of the response, decompressing it if the server compressed it (we always ask for that, see {@link URLBuilder#send()}).
+     * When the stream is closed, the number of bytes saved is recorded.
+     */
+    static InputStream decompress(HttpResponse<InputStream> r) throws QueryException {
+        String encoding = r.headers().firstValue("content-encoding").map(e -> e.trim().toLowerCase()).orElse("identity");
+        if (!encoding.equals("gzip") && !encoding.equals("x-gzip") && !encoding.equals("deflate")) return r.body();
+
+        CountingInputStream compressed = new CountingInputStream(r.body());
         try {
-            int code = conn.getResponseCode();
-            if (conn.getErrorStream() != null) {
-                String body = StringUtils.join(IOUtils.readLines(conn.getErrorStream(), "utf-8"), "\n");
-                return Result.error(new QueryException(code, body));
-            } else if (code < 200 || code >= 300) {
-                return Result.error(new QueryException(code, "Unexpected response (http " + code + ") from url " + conn.getURL()));
-            } else if (code == 204) {
-                return Result.success("");
-            } else {
-                String body = StringUtils.join(IOUtils.readLines(conn.getInputStream(), "utf-8"), "\n");
-                return Result.success(body);
-            }
+            InputStream decoded = encoding.equals("deflate") ? new InflaterInputStream(compressed) : new GZIPInputStream(compressed, 8192);
+            return new CountingInputStream(decoded) {
+                private boolean closed = false;
+
+                @Override
+                public void close() throws IOException {
+                    super.close();
+                    if (closed) return;
+                    closed = true;
+                    recordCompression(compressed.getByteCount(), this.getByteCount());
+                }
+            };
         } catch (IOException e) {
-            return Result.error(QueryException.wrap(e));
+            readBody(compressed);
+            throw readError(e, "Error decompressing response from url " + r.uri());
+        }
+    }
+
+    private static void recordCompression(long compressedSize, long uncompressedSize) {
+        long n = compressedResponses.incrementAndGet();
+        long totalCompressed = compressedBytes.addAndGet(compressedSize);
+        long totalUncompressed = uncompressedBytes.addAndGet(uncompressedSize);
+        if (n % 100 == 0) {
+            long saved = totalUncompressed - totalCompressed;
+            logger.info(String.format("Received %d compressed responses from BlackLab, %d KB instead of %d KB (%d KB or %d%% saved)",
+                    n, totalCompressed / 1024, totalUncompressed / 1024, saved / 1024, totalUncompressed > 0 ? saved * 100 / totalUncompressed : 0));
         }
     }
-}
\ No newline at end of file
+}
@@ -1,22 +1,38 @@
 package nl.inl.corpuswebsite.utils;
 
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
 import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
 
 /**
  * Helper class for talking to BlackLab.
- * Is initialized with the BlackLab server URL once on startup.
+ * Is initialized with the BlackLab server URL(s) once on startup.
  * Has methods for getting various things from BlackLab, with the ability to copy basic auth headers from the client request (which is why it needs the request and response objects).
+ * Identical requests that are made at the same time (e.g. many users opening the same document) share a single call to BlackLab.
  */
 public class BlackLabApi {
-	protected static String blsUrl;
+	/** The BlackLab server(s), see {@link BlackLabBackends}. Set once on startup. */
+	private static BlackLabBackends backends;
+	/** See {@link #get(String, Function)}. May be null. */
+	private static RequestHedger hedger;
+	/** See {@link #getCorpusConfig(String)} */
+	private static final Map<String, String> listValuesPerCorpus = new ConcurrentHashMap<>();
 	
 	protected final HttpServletRequest request;
 	protected final HttpServletResponse response;
@@ -28,8 +44,8 @@ public class BlackLabApi {
 		this.config = config;
 	}
 
-	private AuthRequest authRequest() {
-		var req = new AuthRequest(request, response);
+	private AuthRequest authRequest(BlackLabBackends.Backend backend) {
+		var req = new AuthRequest(request, response).circuitBreaker(backend.circuitBreaker);
 
 		readRequestParameter(request, config.get(Keys.AUTH_SOURCE_TYPE), config.get(Keys.AUTH_SOURCE_NAME))
 				.ifPresent(auth -> setParameter(req, config.get(Keys.AUTH_TARGET_TYPE), config.get(Keys.AUTH_TARGET_NAME), auth));
@@ -37,32 +53,88 @@ public class BlackLabApi {
 		return req;
 	}
 
+	/**
+	 * Send a request to the server for this corpus. If that server fails (or its circuit breaker is open), try the next one.
+	 * @param routingKey usually the corpus, so a corpus is always served by the same server while it's healthy.
+	 * @param build builds the request for the given server.
+	 * @param execute sends the request.
+	 */
+	private static <T> Result<T, QueryException> withFailover(String routingKey, Function<BlackLabBackends.Backend, AuthRequest> build, Function<AuthRequest, Result<T, QueryException>> execute) {
+		Result<T, QueryException> r = null;
+		for (BlackLabBackends.Backend backend : backends.route(routingKey)) {
+			r = execute.apply(build.apply(backend));
+			if (r.getError().filter(AuthRequest::isServerFailure).isEmpty()) return r;
+		}
+		return r;
+	}
+
+	/**
+	 * Send an idempotent GET (see {@link #withFailover}).
+	 * Identical concurrent requests share one call. If hedging is enabled and BlackLab is slow to respond, a second request is sent
+	 * (to the next server if there is one), and the first answer is used.
+	 */
+	private Result<String, QueryException> get(String routingKey, Function<BlackLabBackends.Backend, AuthRequest> build) {
+		if (hedger == null) return withFailover(routingKey, build, r -> r.requestCoalesced(true));
+
+		List<BlackLabBackends.Backend> route = backends.route(routingKey);
+		BlackLabBackends.Backend alternative = route.get(route.size() > 1 ? 1 : 0);
+		// Each gets its own deadline, through which the hedger cancels the one that loses.
+		// The hedge is not coalesced, or it would just wait for the slow request if it goes to the same server.
+		return hedger.call(Deadline.of(request),
+				deadline -> withFailover(routingKey, backend -> build.apply(backend).deadline(deadline), r -> r.requestCoalesced(true)),
+				deadline -> build.apply(alternative).deadline(deadline).request(true),
+				r -> r.getError().filter(AuthRequest::isServerFailure).isPresent());
+	}
+
 	public Result<String, QueryException> getDocumentMetadata(String corpus, String documentId) {
-		return authRequest()
-				.url(blsUrl, corpus, "docs", documentId)
-				.query("outputformat", "xml")
-				.request(true);
+		return get(corpus, backend -> authRequest(backend)
+				.url(backend.url, corpus, "docs", documentId)
+				.query("outputformat", "xml"));
 	}
 
+	/**
+	 * Get the index metadata, including the values of the annotations that need them (see {@link CorpusConfig#getListValues()}).
+	 * Which annotations those are is only known after fetching the metadata, so we remember it per corpus.
+	 * That way only the first load needs a second request, and only if there are such annotations at all.
+	 * (To keep that first load out of the way of our users, configs are loaded on startup, see {@link #getCorpusIds()}.)
+	 */
 	public Result<CorpusConfig, Exception> getCorpusConfig(String corpus) {
-		return authRequest()
-				.url(blsUrl, corpus)
-				.query("outputformat", "xml")
-				.request(true)
-				.flatMapWithErrorHandling(xml ->
-						authRequest()
-							.url(blsUrl, corpus)
-							.query("outputformat", "json")
-							.query("listvalues", new CorpusConfig(corpus, xml, "").getListValues())
-							.request(true)
-							.mapWithErrorHandling(json -> new CorpusConfig(corpus, xml, json))
-				);
+		String knownListValues = listValuesPerCorpus.getOrDefault(corpus, "");
+		return getCorpusJson(corpus, knownListValues)
+				.mapWithErrorHandling(json -> new CorpusConfig(corpus, json))
+				.flatMapWithErrorHandling(config -> {
+					listValuesPerCorpus.put(corpus, config.getListValues());
+					if (config.getListValues().equals(knownListValues)) return Result.success(config);
+
+					// The annotations that need their values changed (or weren't known yet), fetch again with the right ones.
+					return getCorpusJson(corpus, config.getListValues())
+							.mapWithErrorHandling(json -> new CorpusConfig(corpus, json));
+				});
+	}
+
+	private Result<String, QueryException> getCorpusJson(String corpus, String listValues) {
+		return get(corpus, backend -> authRequest(backend)
+				.url(backend.url, corpus)
+				.query("outputformat", "json")
+				.query("listvalues", Optional.of(listValues).filter(s -> !s.isEmpty())));
+	}
+
+	/** The ids of the corpora the user may see (so without a user, the public ones). */
+	public Result<List<String>, Exception> getCorpusIds() {
+		return get("", backend -> authRequest(backend)
+				.url(backend.url)
+				.query("outputformat", "json"))
+				.mapWithErrorHandling(json -> {
+					JsonObject server = JsonParser.parseString(json).getAsJsonObject();
+					// "indices" before BlackLab 4
+					JsonObject corpora = server.has("corpora") ? server.getAsJsonObject("corpora") : server.getAsJsonObject("indices");
+					return corpora != null ? new ArrayList<>(corpora.keySet()) : List.of();
+				});
 	}
 
 	public Result<String, QueryException> getStylesheet(String formatName) {
-		return authRequest()
-				.url(blsUrl, "input-formats", formatName, "xslt")
-				.request(true);
+		return get("input-formats/" + formatName, backend -> authRequest(backend)
+				.url(backend.url, "input-formats", formatName, "xslt"));
 	}
 
 	public Result<String, QueryException> getDocumentContents(
@@ -74,27 +146,77 @@ public class BlackLabApi {
 			Optional<String> pattgapdata,
 			Optional<Integer> pageStart,
 			Optional<Integer> pageEnd) {
-		return authRequest()
-				.url(blsUrl, corpus, "docs", docId, "contents")
+		return get(corpus, backend -> documentContentsRequest(backend, corpus, docId, field, searchfield, blacklabQuery, pattgapdata, pageStart, pageEnd));
+	}
+
+	/** Like {@link #getDocumentContents}, but doesn't read the contents. The caller must close the stream. */
+	public Result<InputStream, QueryException> getDocumentContentsStream(
+			String corpus,
+			String docId,
+			Optional<String> field,
+			Optional<String> searchfield,
+			Optional<String> blacklabQuery,
+			Optional<String> pattgapdata,
+			Optional<Integer> pageStart,
+			Optional<Integer> pageEnd) {
+		// Not hedged, the losing stream would have to be discarded.
+		return withFailover(corpus,
+				backend -> documentContentsRequest(backend, corpus, docId, field, searchfield, blacklabQuery, pattgapdata, pageStart, pageEnd),
+				r -> r.requestStream(true));
+	}
+
+	private AuthRequest documentContentsRequest(
+			BlackLabBackends.Backend backend,
+			String corpus,
+			String docId,
+			Optional<String> field,
+			Optional<String> searchfield,
+			Optional<String> blacklabQuery,
+			Optional<String> pattgapdata,
+			Optional<Integer> pageStart,
+			Optional<Integer> pageEnd) {
+		return authRequest(backend)
+				.url(backend.url, corpus, "docs", docId, "contents")
 				.query("field", field)
 				.query("searchfield", searchfield)
 				.query("patt", blacklabQuery)
 				.query("pattgapdata", pattgapdata)
 				.query("wordstart", pageStart.map(Object::toString))
 				.query("wordend", pageEnd.map(Object::toString))
-				.query("escapexmlfragments", "false")
-				.request(true);
+				.query("escapexmlfragments", "false");
 	}
 	
-	public static void setBlsUrl(String url) {
-		BlackLabApi.blsUrl = url;
+	public static void setBackends(BlackLabBackends backends) {
+		BlackLabApi.backends = backends;
+	}
+
+	/** @param hedger null to disable hedging */
+	public static void setHedger(RequestHedger hedger) {
+		BlackLabApi.hedger = hedger;
+	}
+
+	public static Optional<RequestHedger> getHedger() {
+		return Optional.ofNullable(hedger);
+	}
+
+	/** For diagnostics, empty if hedging is disabled. */
+	public static Optional<RequestHedger.Status> getHedgingStatus() {
+		return getHedger().map(RequestHedger::getStatus);
+	}
+
+	/** For diagnostics, the state of the circuit breaker of every server. */
+	public static List<CircuitBreaker.Status> getBackendStatus() {
+		return Optional.ofNullable(backends).stream()
+				.flatMap(b -> b.getAll().stream())
+				.map(b -> b.circuitBreaker.getStatus())
+				.collect(Collectors.toList());
 	}
 
 	private static boolean warned = false;
 	public static Optional<String> readRequestParameter(HttpServletRequest request, String type, String name) {
 		return Optional
 			.ofNullable(type)
-			.filter(t -> name != null)
+			.filter(t -> name != null && request != null)
 			.map(String::toLowerCase)
 			.map(t -> {
 				switch (t) {
@@ -0,0 +1,104 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+import org.apache.commons.lang3.StringUtils;
+
+import nl.inl.corpuswebsite.utils.GlobalConfig.Keys;
+
+/**
+ * The BlackLab servers we can send requests to ({@link Keys#BLS_URL_ON_SERVER} may contain several, separated by commas).
+ * Requests are routed by corpus using consistent hashing, so every corpus is always served by the same server (keeping its caches warm there),
+ * and adding or removing a server only moves the corpora of that server.
+ * Every server has its own {@link CircuitBreaker}, when a server is failing its corpora move to the next server in the ring until it recovers.
+ */
+public class BlackLabBackends {
+    private static final Logger logger = Logger.getLogger(BlackLabBackends.class.getName());
+
+    /** Points per server on the ring, more points spread the corpora more evenly. */
+    private static final int VIRTUAL_NODES = 100;
+
+    public static class Backend {
+        public final String url;
+        public final CircuitBreaker circuitBreaker;
+
+        Backend(String url, CircuitBreaker circuitBreaker) {
+            this.url = url;
+            this.circuitBreaker = circuitBreaker;
+        }
+    }
+
+    private final List<Backend> backends;
+    private final TreeMap<Integer, Backend> ring = new TreeMap<>();
+
+    public BlackLabBackends(List<Backend> backends) {
+        if (backends.isEmpty()) throw new IllegalArgumentException("No BlackLab servers configured");
+        this.backends = Collections.unmodifiableList(new ArrayList<>(backends));
+        for (Backend b : backends) {
+            for (int i = 0; i < VIRTUAL_NODES; ++i) {
+                ring.put(hash(b.url + "#" + i), b);
+            }
+        }
+    }
+
+    public static BlackLabBackends fromConfig(GlobalConfig config) {
+        List<String> urls = Arrays.stream(config.get(Keys.BLS_URL_ON_SERVER).split(","))
+                .map(String::trim)
+                .filter(StringUtils::isNotEmpty)
+                .map(u -> StringUtils.stripEnd(u, "/\\"))
+                .distinct()
+                .collect(Collectors.toList());
+
+        List<Backend> backends = new ArrayList<>();
+        for (int i = 0; i < urls.size(); ++i) {
+            // The breaker's name is shown publicly (in the /config response), so don't use the url.
+            String name = urls.size() == 1 ? "BlackLab" : "BlackLab server " + (i + 1);
+            if (urls.size() > 1) logger.info(name + ": " + urls.get(i));
+            backends.add(new Backend(urls.get(i), CircuitBreaker.fromConfig(name, config)));
+        }
+        return new BlackLabBackends(backends);
+    }
+
+    /**
+     * Get the servers to try for this key (usually the corpus), in order of preference.
+     * The first is the server the key maps to, the rest are the servers that follow it on the ring.
+     */
+    public List<Backend> route(String key) {
+        if (backends.size() == 1) return backends;
+
+        Set<Backend> result = new LinkedHashSet<>();
+        int h = hash(key);
+        for (Map<Integer, Backend> part : Arrays.asList(ring.tailMap(h), ring.headMap(h))) {
+            for (Backend b : part.values()) {
+                result.add(b);
+                if (result.size() == backends.size()) return new ArrayList<>(result);
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    public List<Backend> getAll() {
+        return backends;
+    }
+
+    private static int hash(String key) {
+        try {
+            byte[] d = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ((d[0] & 0xFF) << 24) | ((d[1] & 0xFF) << 16) | ((d[2] & 0xFF) << 8) | (d[3] & 0xFF);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e); // MD5 is always available
+        }
+    }
+}
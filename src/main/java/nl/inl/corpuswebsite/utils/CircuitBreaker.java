@@ -0,0 +1,177 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.util.Optional;
+import java.util.logging.Logger;
+
+/**
+ * Stops calling an upstream service (BlackLab) that is failing or stalling, so requests fail fast instead of piling up.
+ * <pre>
+ * CLOSED:    calls go through, the outcome of the last {@code windowSize} calls is recorded.
+ *            When the window is full and too many calls failed or were slow, the breaker opens.
+ * OPEN:      calls are refused immediately. After {@code openDuration}, the breaker becomes half-open.
+ * HALF_OPEN: a single probe call is let through. If it succeeds (quickly), the breaker closes, otherwise it opens again.
+ * </pre>
+ */
+public class CircuitBreaker {
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class.getName());
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    /** A snapshot of the breaker, for diagnostics. */
+    public static class Status {
+        public final String name;
+        public final State state;
+        /** Percentage of failed calls in the current window. */
+        public final int failureRate;
+        /** Percentage of slow calls in the current window. */
+        public final int slowCallRate;
+        public final int calls;
+
+        private Status(String name, State state, int failureRate, int slowCallRate, int calls) {
+            this.name = name;
+            this.state = state;
+            this.failureRate = failureRate;
+            this.slowCallRate = slowCallRate;
+            this.calls = calls;
+        }
+    }
+
+    /** Permission to make a call, see {@link #tryAcquire()}. */
+    public static final class Permit {
+        /** Whether this is the call that decides whether a half-open breaker closes again. */
+        private final boolean probe;
+
+        private Permit(boolean probe) {
+            this.probe = probe;
+        }
+    }
+
+    private static final Permit CALL = new Permit(false);
+
+    private final String name;
+    private final int failureRateThreshold;
+    private final int slowCallRateThreshold;
+    private final long slowCallMillis;
+    private final long openMillis;
+
+    // Ring buffer of the outcomes of the last calls. All state is guarded by this.
+    private final boolean[] failed;
+    private final boolean[] slow;
+    private int next;
+    private int calls;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    /**
+     * @param name for logging
+     * @param failureRateThreshold percentage of failed calls at which to open. 0 or less disables the breaker.
+     * @param slowCallRateThreshold percentage of slow calls at which to open. 0 or less disables this check.
+     * @param slowCallMillis calls taking at least this long count as slow.
+     * @param windowSize the number of recent calls to consider. No decision is made until this many calls have been made.
+     * @param openMillis how long to refuse calls before letting a probe through.
+     */
+    public CircuitBreaker(String name, int failureRateThreshold, int slowCallRateThreshold, long slowCallMillis, int windowSize, long openMillis) {
+        this.name = name;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallMillis = slowCallMillis;
+        this.openMillis = openMillis;
+        this.failed = new boolean[Math.max(1, windowSize)];
+        this.slow = new boolean[Math.max(1, windowSize)];
+    }
+
+    public static CircuitBreaker fromConfig(String name, GlobalConfig config) {
+        return new CircuitBreaker(name,
+                config.getInt(GlobalConfig.Keys.BLS_CIRCUIT_BREAKER_FAILURE_RATE),
+                config.getInt(GlobalConfig.Keys.BLS_CIRCUIT_BREAKER_SLOW_CALL_RATE),
+                config.getInt(GlobalConfig.Keys.BLS_CIRCUIT_BREAKER_SLOW_CALL_DURATION) * 1000L,
+                config.getInt(GlobalConfig.Keys.BLS_CIRCUIT_BREAKER_WINDOW_SIZE),
+                config.getInt(GlobalConfig.Keys.BLS_CIRCUIT_BREAKER_OPEN_DURATION) * 1000L);
+    }
+
+    private boolean isEnabled() {
+        return failureRateThreshold > 0;
+    }
+
+    /**
+     * Ask permission to make a call. If granted, the outcome must be reported through {@link #record(Permit, boolean, long)}.
+     * @return empty if the call should not be made.
+     */
+    public synchronized Optional<Permit> tryAcquire() {
+        if (!isEnabled() || state == State.CLOSED) return Optional.of(CALL);
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMillis) return Optional.empty();
+            transition(State.HALF_OPEN);
+        }
+        // Half open: let a single call through to see whether the server has recovered.
+        if (probeInFlight) return Optional.empty();
+        probeInFlight = true;
+        return Optional.of(new Permit(true));
+    }
+
+    /**
+     * Report the outcome of a call for which permission was granted.
+     * @param permit as returned by {@link #tryAcquire()} for this call
+     * @param failure whether the call failed (could not connect, timed out, server error)
+     * @param durationMillis how long the call took
+     */
+    public synchronized void record(Permit permit, boolean failure, long durationMillis) {
+        if (!isEnabled()) return;
+        boolean isSlow = durationMillis >= slowCallMillis;
+
+        if (permit.probe) {
+            probeInFlight = false;
+            if (state != State.HALF_OPEN) return;
+            if (failure || isSlow) open();
+            else transition(State.CLOSED);
+            return;
+        }
+        // Started before we opened, no longer relevant (and it's up to the probe to decide when we're half open).
+        if (state != State.CLOSED) return;
+
+        failed[next] = failure;
+        slow[next] = isSlow;
+        next = (next + 1) % failed.length;
+        calls = Math.min(calls + 1, failed.length);
+        if (calls < failed.length) return;
+
+        if (rate(failed) >= failureRateThreshold || (slowCallRateThreshold > 0 && rate(slow) >= slowCallRateThreshold)) open();
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized Status getStatus() {
+        return new Status(name, isEnabled() ? state : State.CLOSED, rate(failed), rate(slow), calls);
+    }
+
+    private int rate(boolean[] outcomes) {
+        if (calls == 0) return 0;
+        int n = 0;
+        for (int i = 0; i < calls; ++i) if (outcomes[i]) ++n;
+        return n * 100 / calls;
+    }
+
+    private void open() {
+        openedAt = System.currentTimeMillis();
+        transition(State.OPEN);
+    }
+
+    private void transition(State newState) {
+        if (newState == state) return;
+        if (newState == State.OPEN) {
+            logger.warning("Circuit breaker for " + name + " opened (failure rate " + rate(failed) + "%, slow call rate " + rate(slow) + "%), refusing calls for " + openMillis / 1000 + "s");
+        } else {
+            logger.info("Circuit breaker for " + name + " is now " + newState);
+        }
+        state = newState;
+        if (newState != State.HALF_OPEN) {
+            // Start with a clean window
+            calls = 0;
+            next = 0;
+        }
+    }
+}
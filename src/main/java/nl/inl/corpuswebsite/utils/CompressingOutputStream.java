@@ -0,0 +1,123 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Gzips the response body while it's being written.
+ * The first few bytes are held back, so small responses can still be sent uncompressed (and with a Content-Length),
+ * as soon as the threshold is crossed, the headers are set and everything from then on is compressed straight into the response.
+ */
+public class CompressingOutputStream extends OutputStream {
+    private final HttpServletResponse response;
+    private final int level;
+    private final int minSize;
+
+    /** Holds the output until we know whether it's large enough to compress. Null once we've decided. */
+    private ByteArrayOutputStream buffer;
+    /** Where output goes after we've decided. */
+    private OutputStream out;
+    private boolean closed;
+
+    /**
+     * Get the stream to write the response body to, compressing it if the client supports it.
+     * Must be called before anything is written to the response.
+     *
+     * @param request for the Accept-Encoding header
+     * @param response the response to write to
+     * @param level the compression level (1-9). 0 disables compression.
+     * @param minSize responses smaller than this (in bytes) are not compressed.
+     * @return the stream, close it to finish the response.
+     */
+    public static OutputStream wrap(HttpServletRequest request, HttpServletResponse response, int level, int minSize) throws IOException {
+        if (level <= 0) return response.getOutputStream();
+        // Caches must know the response differs per client, even if this client doesn't get the compressed one.
+        response.addHeader("Vary", "Accept-Encoding");
+        if (!acceptsGzip(request)) return response.getOutputStream();
+        return new CompressingOutputStream(response, Math.min(level, 9), minSize);
+    }
+
+    /** Whether the client accepts gzip, i.e. it's listed in Accept-Encoding (or *), and not with q=0. */
+    public static boolean acceptsGzip(HttpServletRequest request) {
+        String header = request.getHeader("Accept-Encoding");
+        if (header == null) return false;
+        for (String coding : header.toLowerCase().split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim();
+            if (!name.equals("gzip") && !name.equals("*")) continue;
+            for (int i = 1; i < parts.length; ++i) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        if (Double.parseDouble(param.substring(2)) == 0) return false;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private CompressingOutputStream(HttpServletResponse response, int level, int minSize) {
+        this.response = response;
+        this.level = level;
+        this.minSize = minSize;
+        this.buffer = new ByteArrayOutputStream(Math.max(minSize, 32));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (closed) throw new IOException("Stream closed");
+        if (out != null) {
+            out.write(b, off, len);
+            return;
+        }
+        buffer.write(b, off, len);
+        if (buffer.size() >= minSize) startCompressing();
+    }
+
+    private void startCompressing() throws IOException {
+        response.setHeader("Content-Encoding", "gzip");
+        out = new GZIPOutputStream(response.getOutputStream(), 8192) {
+            {
+                def.setLevel(level);
+            }
+        };
+        buffer.writeTo(out);
+        buffer = null;
+    }
+
+    /** Only flushes once we're compressing, flushing earlier would commit the response before we know whether to compress. */
+    @Override
+    public void flush() throws IOException {
+        if (out != null) out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        if (out == null) {
+            // Never reached the threshold, send as-is.
+            OutputStream os = response.getOutputStream();
+            response.setContentLength(buffer.size());
+            buffer.writeTo(os);
+            buffer = null;
+            os.close();
+        } else {
+            out.close(); // writes the gzip trailer
+        }
+    }
+}
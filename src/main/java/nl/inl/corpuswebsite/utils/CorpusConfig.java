@@ -1,26 +1,13 @@
 package nl.inl.corpuswebsite.utils;
 
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.stream.StreamSource;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-import javax.xml.xpath.XPathFactoryConfigurationException;
-
-import net.sf.saxon.dom.DocumentBuilderImpl;
-import net.sf.saxon.s9api.*;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-
-import net.sf.saxon.xpath.XPathFactoryImpl;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 
 /** Represents BlackLab index metadata */
 public class CorpusConfig {
@@ -35,17 +22,18 @@ public class CorpusConfig {
 
     private final String listValues;
     
-    public CorpusConfig(String corpusId, String configAsXml, String configAsJson)
-            throws SAXException, IOException, ParserConfigurationException, XPathExpressionException, SaxonApiException {
-        Processor proc = new Processor(false);
-        DocumentBuilder builder = proc.newDocumentBuilder();
-        XdmNode doc = builder.build(new StreamSource(new ByteArrayInputStream(configAsXml.getBytes(StandardCharsets.UTF_8))));
-        XPathCompiler xp = proc.newXPathCompiler();
+    /**
+     * @param corpusId the corpus
+     * @param configAsJson the index metadata as returned by BlackLab (in json).
+     * @throws JsonParseException if the metadata is not valid json or not an object.
+     */
+    public CorpusConfig(String corpusId, String configAsJson) throws JsonParseException {
+        JsonObject doc = JsonParser.parseString(configAsJson).getAsJsonObject();
 
         this.corpusId = corpusId;
         this.jsonUnescaped = configAsJson;
-        this.displayName = xp.evaluate("/blacklabResponse/displayName", doc).stream().findFirst().map(XdmItem::getStringValue).or(() -> Optional.of(corpusId));
-        this.corpusDataFormat = xp.evaluate("//documentFormat", doc).stream().findFirst().map(XdmItem::getStringValue);
+        this.displayName = getString(doc, "displayName").or(() -> Optional.of(corpusId));
+        this.corpusDataFormat = getString(doc, "documentFormat");
 
         /**
          * Extract annotation ids for which we require the full list of values to be known by the frontend.
@@ -55,15 +43,34 @@ public class CorpusConfig {
          * For the "select" value (e.g. a dropdown list) we need to get the possible values for that field from blacklab.
          * Since they aren't contained in the initial json payload unless we specifically request them.
          *
-         * Finds the fields marked with "select", and returns a comma-separated list of the field names.
+         * Finds the fields marked with "select" (and "pos", along with their subannotations), and returns a comma-separated list of the field names.
          * We can then use that list to request the config again, with the field values.
          */
-        this.listValues = xp.evaluate("string-join("
-            + "//annotation[not(isInternal='true') and uiType='select']/@name |"
-            + "//annotation[not(isInternal='true') and uiType='pos']/@name | "
-            + "//annotation[not(isInternal='true') and uiType='pos']/subannotation"
-            + ", ',')",
-        doc).stream().findFirst().map(XdmItem::getStringValue).orElse("");
+        List<String> names = new ArrayList<>();
+        Optional.ofNullable(doc.getAsJsonObject("annotatedFields")).ifPresent(fields -> fields.entrySet().forEach(field -> {
+            if (!field.getValue().isJsonObject()) return;
+            JsonObject annotations = field.getValue().getAsJsonObject().getAsJsonObject("annotations");
+            if (annotations == null) return;
+            annotations.entrySet().forEach(annotation -> {
+                if (!annotation.getValue().isJsonObject()) return;
+                JsonObject a = annotation.getValue().getAsJsonObject();
+                String uiType = getString(a, "uiType").orElse("");
+                boolean isInternal = getString(a, "isInternal").filter("true"::equals).isPresent();
+                if (isInternal || !(uiType.equals("select") || uiType.equals("pos"))) return;
+
+                names.add(annotation.getKey());
+                if (uiType.equals("pos") && a.has("subannotations") && a.get("subannotations").isJsonArray()) {
+                    a.getAsJsonArray("subannotations").forEach(sub -> names.add(sub.getAsString()));
+                }
+            });
+        }));
+        this.listValues = String.join(",", names);
+    }
+
+    /** Get a string (or boolean/number as string) property, if it's present. */
+    private static Optional<String> getString(JsonObject o, String key) {
+        JsonElement e = o.get(key);
+        return e != null && e.isJsonPrimitive() ? Optional.of(e.getAsString()) : Optional.empty();
     }
 
     public String getCorpusId() {
@@ -86,6 +93,7 @@ public class CorpusConfig {
         return corpusDataFormat;
     }
 
+    /** Comma-separated names of the annotations for which the frontend needs all values, see the constructor. */
     public String getListValues() {
         return listValues;
     }
@@ -0,0 +1,132 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the per-corpus interface data directory ({@link GlobalConfig.Keys#CORPUS_CONFIG_DIR}) for changes,
+ * so cached files (search.xml, xslt, help and about pages) can be reloaded without disabling the cache altogether.
+ * Only the corpus directories directly under the root are watched, not their subdirectories (e.g. 'static', which is never cached).
+ */
+public class CorpusFileWatcher {
+    private static final Logger logger = Logger.getLogger(CorpusFileWatcher.class.getName());
+
+    public interface Listener {
+        /**
+         * @param corpusDir name of the directory (i.e. the corpus, or the default/fallback directory) in which something changed.
+         *                  Null if it's unknown what changed, in which case everything should be considered changed.
+         * @param fileName name of the file that was created, modified or deleted.
+         *                 Null if it's unknown which file changed (e.g. the directory was just created), in which case all files in the directory should be considered changed.
+         */
+        void changed(String corpusDir, String fileName);
+    }
+
+    private final Path root;
+    private final Listener listener;
+    private final WatchService watchService;
+    private final Thread watchThread;
+    /** Which directory each key is for. */
+    private final Map<WatchKey, Path> dirs = new ConcurrentHashMap<>();
+
+    /**
+     * Start watching the directory.
+     * @return the watcher, or empty if the directory doesn't exist or can't be watched.
+     */
+    public static Optional<CorpusFileWatcher> watch(String corpusConfigDir, Listener listener) {
+        if (corpusConfigDir == null || !Files.isDirectory(Paths.get(corpusConfigDir))) {
+            logger.info("Not watching corpus config dir " + corpusConfigDir + ", it does not exist");
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(new CorpusFileWatcher(Paths.get(corpusConfigDir), listener));
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not watch corpus config dir " + corpusConfigDir + ", changes to files will not be picked up until restart", e);
+            return Optional.empty();
+        }
+    }
+
+    private CorpusFileWatcher(Path root, Listener listener) throws IOException {
+        this.root = root;
+        this.listener = listener;
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        logger.info("Watching corpus config dir " + root + " for changes");
+        dirs.put(root.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE), root);
+        try (DirectoryStream<Path> corpora = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path corpusDir : corpora) watchCorpusDir(corpusDir);
+        }
+
+        watchThread = new Thread(this::run, "corpus-config-dir-watcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    private void watchCorpusDir(Path dir) throws IOException {
+        WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        dirs.put(key, dir);
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watchService.take();
+                Path dir = dirs.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    try {
+                        handle(dir, event);
+                    } catch (Exception e) {
+                        logger.log(Level.WARNING, "Error handling change in corpus config dir " + dir, e);
+                    }
+                }
+                if (!key.reset()) dirs.remove(key); // directory was deleted
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // ignore
+        }
+    }
+
+    private void handle(Path dir, WatchEvent<?> event) throws IOException {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+            // Events were lost, we don't know what changed.
+            listener.changed(null, null);
+            return;
+        }
+
+        Path changed = dir.resolve((Path) event.context());
+        if (dir.equals(root)) {
+            // A corpus directory was added or removed.
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(changed)) watchCorpusDir(changed);
+            logger.fine("Corpus config dir changed: " + changed);
+            listener.changed(changed.getFileName().toString(), null);
+        } else {
+            logger.fine("Corpus config file changed: " + changed);
+            listener.changed(dir.getFileName().toString(), changed.getFileName().toString());
+        }
+    }
+
+    public void close() {
+        logger.info("Shutting down corpus config dir watcher");
+        watchThread.interrupt();
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error closing watch service", e);
+        }
+    }
+}
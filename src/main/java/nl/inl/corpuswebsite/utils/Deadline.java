@@ -0,0 +1,137 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * The time by which a request to us must be answered.
+ * Created when the request comes in (see {@link nl.inl.corpuswebsite.MainServlet}) and stored on it,
+ * every step that may take a while (requests to BlackLab, transformations) then only gets the time that's left,
+ * so a request fails with a 504 once its budget is used up, instead of holding on to a thread indefinitely.
+ * <br>
+ * When the client goes away before we're done, the request is {@link #cancel() cancelled}:
+ * requests to BlackLab made on its behalf are aborted, and transformations stop with a {@link RequestCancelledException}.
+ */
+public class Deadline {
+    private static final String ATTRIBUTE = Deadline.class.getName();
+
+    /** For work that's not done on behalf of a request (e.g. in the background). Can't be cancelled. */
+    public static final Deadline NONE = new Deadline(0, true);
+
+    /** System.nanoTime() at which the deadline passes. */
+    private final long deadline;
+    private final boolean unlimited;
+
+    private volatile boolean cancelled;
+    /** Guarded by this, null once cancelled. */
+    private List<Runnable> onCancel = new ArrayList<>();
+
+    private Deadline(long deadline, boolean unlimited) {
+        this.deadline = deadline;
+        this.unlimited = unlimited;
+    }
+
+    /** @param budget zero or less for no deadline */
+    public static Deadline after(Duration budget) {
+        if (budget.isZero() || budget.isNegative()) return new Deadline(0, true);
+        return new Deadline(System.nanoTime() + budget.toNanos(), false);
+    }
+
+    /** Store the deadline on the request, so everything handling it can find it. */
+    public void attach(HttpServletRequest request) {
+        request.setAttribute(ATTRIBUTE, this);
+    }
+
+    /** @param request may be null */
+    public static Deadline of(HttpServletRequest request) {
+        Object d = request != null ? request.getAttribute(ATTRIBUTE) : null;
+        return d instanceof Deadline ? (Deadline) d : NONE;
+    }
+
+    /** Abort everything registered through {@link #onCancel(Runnable)}, and everything that checks {@link #throwIfCancelled()} from now on. */
+    public void cancel() {
+        if (this == NONE) return;
+        List<Runnable> callbacks;
+        synchronized (this) {
+            if (cancelled) return;
+            cancelled = true;
+            callbacks = onCancel;
+            onCancel = null;
+        }
+        callbacks.forEach(Runnable::run);
+    }
+
+    /**
+     * A deadline with the same time limit, that can also be cancelled on its own (e.g. the slower of two requests that race each other, see {@link RequestHedger}).
+     * It's cancelled along with this one.
+     */
+    public Deadline child() {
+        Deadline child = new Deadline(deadline, unlimited);
+        onCancel(child::cancel);
+        return child;
+    }
+
+    /** A deadline with the same time limit, that is not cancelled along with this one (e.g. for work that other requests may still need, see {@link SingleFlight}). */
+    public Deadline detached() {
+        return new Deadline(deadline, unlimited);
+    }
+
+    /** Run the callback when the request is cancelled, or right away if it already was. It may be run on any thread. */
+    public void onCancel(Runnable callback) {
+        if (this == NONE) return;
+        synchronized (this) {
+            if (!cancelled) {
+                onCancel.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void throwIfCancelled() {
+        if (cancelled) throw new RequestCancelledException();
+    }
+
+    public boolean isExpired() {
+        return !unlimited && System.nanoTime() - deadline >= 0;
+    }
+
+    /** The time that's left, zero once expired. */
+    public Duration remaining() {
+        return unlimited ? Duration.ofSeconds(Long.MAX_VALUE) : Duration.ofNanos(Math.max(0, deadline - System.nanoTime()));
+    }
+
+    /** @return the timeout, or the time that's left if that's shorter (but at least 1 ms, as a timeout of 0 often means no timeout at all). */
+    public Duration limit(Duration timeout) {
+        if (unlimited) return timeout;
+        Duration remaining = remaining();
+        if (remaining.compareTo(timeout) >= 0) return timeout;
+        return remaining.isZero() ? Duration.ofMillis(1) : remaining;
+    }
+
+    /**
+     * @param what what we were about to do, for the error message (e.g. "transforming the document").
+     * @return an error if the deadline has passed.
+     * @throws RequestCancelledException if the request was cancelled.
+     */
+    public Result<Deadline, QueryException> check(String what) {
+        throwIfCancelled();
+        return isExpired() ? Result.error(exceeded(what)) : Result.success(this);
+    }
+
+    public static QueryException exceeded(String what) {
+        return new QueryException(HttpServletResponse.SC_GATEWAY_TIMEOUT, "The request took too long to complete (timed out while " + what + "), please try again later.");
+    }
+
+    public static boolean isTimeout(Exception e) {
+        return e instanceof QueryException && ((QueryException) e).getHttpStatusCode() == HttpServletResponse.SC_GATEWAY_TIMEOUT;
+    }
+}
@@ -0,0 +1,142 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import org.apache.commons.lang3.StringUtils;
+
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.s9api.XdmSequenceIterator;
+
+/**
+ * The metadata of a document as returned by BlackLab, along with the things we derive from it.
+ * The xml is parsed once, the document lengths are read from the tree, and the tree is also what meta.xsl transforms (so it's not parsed again).
+ * The transformed html is computed on first use.
+ * Instances are cached (see {@link nl.inl.corpuswebsite.MainServlet#getDocumentMetadata}), so paging through a document doesn't fetch and transform its metadata again for every page.
+ */
+public class DocumentMetadata {
+    private static final Logger logger = Logger.getLogger(DocumentMetadata.class.getName());
+
+    private static class Transformed {
+        final List<Object> key;
+        final Result<String, QueryException> html;
+
+        Transformed(List<Object> key, Result<String, QueryException> html) {
+            this.key = key;
+            this.html = html;
+        }
+    }
+
+    /** The parsed xml (immutable, so it can be transformed by several requests at once). Null if the xml couldn't be parsed. */
+    private final XdmNode tree;
+    /** Only kept if it couldn't be parsed, so transforming it reports the error. */
+    private final String xml;
+    /** Length of the main annotated field, if present. */
+    private final Optional<Integer> documentLength;
+    /** Length of every annotated field (parallel corpora), keyed by full field name. In document order, see {@link #getFieldLength(String)}. */
+    private final Map<String, Integer> fieldLengths = new LinkedHashMap<>();
+
+    private volatile Transformed transformed;
+
+    public DocumentMetadata(String xml) {
+        XdmNode parsed = null;
+        try {
+            parsed = XslTransformer.parse(xml);
+        } catch (SaxonApiException e) {
+            logger.warning("Could not parse document metadata: " + e.getMessage());
+        }
+        this.tree = parsed;
+        this.xml = parsed == null ? xml : null;
+
+        // <lengthInTokens>, and for parallel corpora <fieldName>contents__nl</fieldName><tokenCount>123</tokenCount>
+        Optional<Integer> length = Optional.empty();
+        if (tree != null) {
+            XdmSequenceIterator<XdmNode> it = tree.axisIterator(Axis.DESCENDANT);
+            while (it.hasNext()) {
+                XdmNode n = it.next();
+                if (n.getNodeKind() != XdmNodeKind.ELEMENT) continue;
+                String name = n.getNodeName().getLocalName();
+                if (name.equals("lengthInTokens") && length.isEmpty()) {
+                    length = parseInt(n);
+                } else if (name.equals("fieldName")) {
+                    String field = n.getStringValue().trim();
+                    nextElement(n)
+                        .filter(next -> next.getNodeName().getLocalName().equals("tokenCount"))
+                        .flatMap(DocumentMetadata::parseInt)
+                        .ifPresent(count -> fieldLengths.putIfAbsent(field, count));
+                }
+            }
+        }
+        this.documentLength = length;
+    }
+
+    private static Optional<XdmNode> nextElement(XdmNode n) {
+        XdmSequenceIterator<XdmNode> it = n.axisIterator(Axis.FOLLOWING_SIBLING);
+        while (it.hasNext()) {
+            XdmNode sibling = it.next();
+            if (sibling.getNodeKind() == XdmNodeKind.ELEMENT) return Optional.of(sibling);
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<Integer> parseInt(XdmNode n) {
+        try {
+            return Optional.of(Integer.parseInt(n.getStringValue().trim()));
+        } catch (NumberFormatException e) {
+            return Optional.empty();
+        }
+    }
+
+    /** The metadata as returned by BlackLab, to transform. Already parsed, unless it couldn't be. */
+    public Source getSource() {
+        return tree != null ? tree.asSource() : new StreamSource(new StringReader(xml));
+    }
+
+    /**
+     * @param field the annotated field, either the full field name like contents__nl or just a version like nl. Null or empty for the main annotated field.
+     * @return the length of the document in tokens
+     * @throws RuntimeException when the length can't be found in the metadata.
+     */
+    public int getDocumentLength(String field) {
+        boolean isParallel = !StringUtils.isEmpty(field);
+        Optional<Integer> length = isParallel ? getFieldLength(field) : documentLength;
+        return length.orElseThrow(() -> new RuntimeException("Cannot decode document size" + (isParallel ? " for field " + field : "") + ". Unsupported BlackLab version?"));
+    }
+
+    /** When only a version is given and several fields have it, the first one in the metadata is used. */
+    private Optional<Integer> getFieldLength(String field) {
+        if (fieldLengths.containsKey(field)) return Optional.of(fieldLengths.get(field));
+        return fieldLengths.entrySet().stream()
+                .filter(e -> e.getKey().endsWith("__" + field) && e.getKey().length() > field.length() + 2)
+                .map(Map.Entry::getValue)
+                .findFirst();
+    }
+
+    /**
+     * Get the transformed metadata, transforming it if it hasn't been yet with these settings.
+     * Only a successful transformation is kept.
+     *
+     * @param key everything the transformation depends on (stylesheet version, xslt parameters, etc.)
+     * @param transform transforms the xml
+     * @return the transformed metadata
+     */
+    public Result<String, QueryException> getTransformed(List<Object> key, Supplier<Result<String, QueryException>> transform) {
+        Transformed t = this.transformed;
+        if (t != null && t.key.equals(key)) return t.html;
+
+        Result<String, QueryException> html = transform.get();
+        if (html.hasResult()) this.transformed = new Transformed(key, html);
+        return html;
+    }
+}
@@ -0,0 +1,238 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A small size-bounded cache where entries expire a fixed time after they were loaded.
+ * When full, the least recently used entry is evicted.
+ * Optionally, entries can be given a weight (e.g. their size in bytes), then the least recently used entries are also evicted to keep the total weight within bounds.
+ * Concurrent misses for the same key share a single load (see {@link SingleFlight}), misses for different keys don't block each other.
+ * <br>
+ * Optionally, entries can be refreshed in the background (stale-while-revalidate):
+ * once an entry is older than the refresh interval, it is still returned, but a single background task reloads it and swaps in the new value.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class ExpiringCache<K, V> {
+    private static final Logger logger = Logger.getLogger(ExpiringCache.class.getName());
+
+    private static class CachedValue<V> {
+        final V value;
+        final long weight;
+        final long loadedAt;
+        /** Set while a background refresh for this value is queued or running. */
+        final AtomicBoolean refreshing = new AtomicBoolean();
+
+        CachedValue(V value, long weight) {
+            this.value = value;
+            this.weight = weight;
+            this.loadedAt = System.currentTimeMillis();
+        }
+
+        long age() {
+            return System.currentTimeMillis() - loadedAt;
+        }
+    }
+
+    private final long timeToLiveMillis;
+    private final long refreshAfterMillis;
+    private final int maxSize;
+    private final ToLongFunction<V> weigher;
+    private final long maxWeight;
+    /** Not every loaded value should be kept, e.g. a Result holding an error. */
+    private final Predicate<V> shouldStore;
+    /** Runs background refreshes, null if refreshing is disabled. */
+    private final Executor refreshExecutor;
+
+    /** Access-ordered, so the eldest entry is the least recently used one. Guarded by itself. */
+    private final LinkedHashMap<K, CachedValue<V>> entries;
+    /** Total weight of the entries, guarded by entries. */
+    private long totalWeight;
+    private final SingleFlight<K, V> loads = new SingleFlight<>();
+
+    /**
+     * @param timeToLiveMillis how long an entry is served after loading it. If 0 or less, nothing is ever stored.
+     * @param maxSize maximum number of entries.
+     * @param shouldStore whether a loaded value may be stored.
+     */
+    public ExpiringCache(long timeToLiveMillis, int maxSize, Predicate<V> shouldStore) {
+        this(timeToLiveMillis, 0, maxSize, v -> 0, Long.MAX_VALUE, shouldStore, null);
+    }
+
+    /**
+     * @param timeToLiveMillis how long an entry is served after loading it. If 0 or less, nothing is ever stored.
+     * @param maxSize maximum number of entries.
+     * @param weigher the weight of a value (e.g. its size in bytes).
+     * @param maxWeight maximum total weight of the entries. A value that weighs more than this by itself is not stored.
+     * @param shouldStore whether a loaded value may be stored.
+     */
+    public ExpiringCache(long timeToLiveMillis, int maxSize, ToLongFunction<V> weigher, long maxWeight, Predicate<V> shouldStore) {
+        this(timeToLiveMillis, 0, maxSize, weigher, maxWeight, shouldStore, null);
+    }
+
+    /**
+     * @param timeToLiveMillis how long an entry is served after loading it. If 0 or less, nothing is ever stored.
+     * @param refreshAfterMillis after this long, an entry is still served, but is reloaded in the background. If 0 or less, entries are never refreshed.
+     * @param maxSize maximum number of entries.
+     * @param shouldStore whether a loaded value may be stored. When a refreshed value should not be stored, the old value is kept.
+     * @param refreshExecutor runs the background refreshes.
+     */
+    public ExpiringCache(long timeToLiveMillis, long refreshAfterMillis, int maxSize, Predicate<V> shouldStore, Executor refreshExecutor) {
+        this(timeToLiveMillis, refreshAfterMillis, maxSize, v -> 0, Long.MAX_VALUE, shouldStore, refreshExecutor);
+    }
+
+    private ExpiringCache(long timeToLiveMillis, long refreshAfterMillis, int maxSize, ToLongFunction<V> weigher, long maxWeight, Predicate<V> shouldStore, Executor refreshExecutor) {
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.refreshAfterMillis = refreshExecutor != null ? refreshAfterMillis : 0;
+        this.maxSize = Math.max(1, maxSize);
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+        this.shouldStore = shouldStore;
+        this.refreshExecutor = refreshExecutor;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CachedValue<V>> eldest) {
+                if (size() <= ExpiringCache.this.maxSize) return false;
+                totalWeight -= eldest.getValue().weight;
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Get the value for the key, calling the loader if there is no (unexpired) entry.
+     * The loader runs on the calling thread.
+     */
+    public V get(K key, Supplier<V> loader) {
+        return get(key, loader, null);
+    }
+
+    /**
+     * Get the value for the key, calling the loader if there is no (unexpired) entry.
+     * The loader runs on the calling thread.
+     * If the entry is due for a refresh, it is returned as-is, and the refresher is called on a background thread.
+     *
+     * @param refresher loads the value in the background, so it must not depend on the current request. If null, the entry is not refreshed.
+     */
+    public V get(K key, Supplier<V> loader, Supplier<V> refresher) {
+        if (timeToLiveMillis <= 0) return loader.get();
+
+        CachedValue<V> cached = getIfPresent(key);
+        if (cached != null) {
+            if (refresher != null) refreshIfStale(key, cached, refresher);
+            return cached.value;
+        }
+
+        return loads.load(key, () -> {
+            // Check again, a load might have finished between our lookup and joining the flight.
+            CachedValue<V> c = getIfPresent(key);
+            if (c != null) return c.value;
+
+            V v = loader.get();
+            store(key, v);
+            return v;
+        });
+    }
+
+    private CachedValue<V> getIfPresent(K key) {
+        synchronized (entries) {
+            CachedValue<V> e = entries.get(key);
+            if (e == null) return null;
+            if (e.age() < timeToLiveMillis) return e;
+            remove(key);
+            return null;
+        }
+    }
+
+    private void store(K key, V v) {
+        if (v == null || !shouldStore.test(v)) return;
+        synchronized (entries) {
+            put(key, v);
+        }
+    }
+
+    /** Caller must hold the lock on entries. */
+    private void put(K key, V v) {
+        long weight = weigher.applyAsLong(v);
+        if (weight > maxWeight) {
+            remove(key);
+            return;
+        }
+        CachedValue<V> old = entries.put(key, new CachedValue<>(v, weight));
+        totalWeight += weight - (old != null ? old.weight : 0);
+        // Least recently used first, the new entry is last.
+        Iterator<CachedValue<V>> it = entries.values().iterator();
+        while (totalWeight > maxWeight && it.hasNext()) {
+            totalWeight -= it.next().weight;
+            it.remove();
+        }
+    }
+
+    /** Caller must hold the lock on entries. */
+    private void remove(K key) {
+        CachedValue<V> old = entries.remove(key);
+        if (old != null) totalWeight -= old.weight;
+    }
+
+    private void refreshIfStale(K key, CachedValue<V> cached, Supplier<V> refresher) {
+        if (refreshAfterMillis <= 0 || cached.age() < refreshAfterMillis) return;
+        if (!cached.refreshing.compareAndSet(false, true)) return; // someone else is already on it
+
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    V v = refresher.get();
+                    if (v != null && shouldStore.test(v)) {
+                        synchronized (entries) {
+                            // Don't resurrect an entry that was invalidated while we were loading.
+                            if (entries.get(key) == cached) put(key, v);
+                        }
+                    }
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, "Error refreshing cache entry " + key, e);
+                } finally {
+                    // If the refresh failed, allow the next request to try again. Otherwise this value is no longer in the cache anyway.
+                    cached.refreshing.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            cached.refreshing.set(false);
+        }
+    }
+
+    public void invalidate(K key) {
+        synchronized (entries) {
+            remove(key);
+        }
+    }
+
+    public void invalidateIf(Predicate<K> predicate) {
+        synchronized (entries) {
+            Iterator<Map.Entry<K, CachedValue<V>>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<K, CachedValue<V>> e = it.next();
+                if (!predicate.test(e.getKey())) continue;
+                totalWeight -= e.getValue().weight;
+                it.remove();
+            }
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+            totalWeight = 0;
+        }
+    }
+}
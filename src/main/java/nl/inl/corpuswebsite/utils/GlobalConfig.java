@@ -86,8 +86,41 @@ public class GlobalConfig implements ServletContextListener {
          * NULL if not set.
          */
         BANNER_MESSAGE("bannerMessage"),
-        /** Url to reach blacklab-server from this application. Never ends with a slash. */
+        /**
+         * Url to reach blacklab-server from this application. Never ends with a slash.
+         * May be a comma-separated list of urls of identical servers, see {@link BlackLabBackends}.
+         */
         BLS_URL_ON_SERVER("blsUrl"),
+        /** Timeout (in seconds) for connecting to blacklab-server, also the maximum time to wait for a free connection. Defaults to 10. */
+        BLS_CONNECT_TIMEOUT("bls.connectTimeout"),
+        /** Timeout (in seconds) for a response from blacklab-server, and for each wait for more of its body. Defaults to 60. */
+        BLS_READ_TIMEOUT("bls.readTimeout"),
+        /** Maximum number of concurrent requests to blacklab-server. Defaults to 50. */
+        BLS_MAX_CONNECTIONS("bls.maxConnections"),
+        /** Use HTTP/2 to connect to blacklab-server (if it supports it). Defaults to false. */
+        BLS_HTTP2("bls.http2"),
+        /**
+         * Percentage of failed requests (connection errors, timeouts, server errors) to blacklab-server at which we stop sending requests for a while.
+         * 0 disables the circuit breaker. Defaults to 50.
+         */
+        BLS_CIRCUIT_BREAKER_FAILURE_RATE("bls.circuitBreaker.failureRate"),
+        /** Percentage of slow requests at which we stop sending requests for a while. 0 disables this check. Defaults to 80. */
+        BLS_CIRCUIT_BREAKER_SLOW_CALL_RATE("bls.circuitBreaker.slowCallRate"),
+        /** Requests taking longer than this (in seconds) are considered slow. Defaults to 10. */
+        BLS_CIRCUIT_BREAKER_SLOW_CALL_DURATION("bls.circuitBreaker.slowCallDuration"),
+        /** The number of recent requests the rates are calculated over. Defaults to 20. */
+        BLS_CIRCUIT_BREAKER_WINDOW_SIZE("bls.circuitBreaker.windowSize"),
+        /** How long (in seconds) to stop sending requests before trying again. Defaults to 30. */
+        BLS_CIRCUIT_BREAKER_OPEN_DURATION("bls.circuitBreaker.openDuration"),
+        /**
+         * Send a second request to BlackLab when the first takes longer than this percentile (1-99) of recent requests, and use whichever answers first.
+         * Only for requests that can safely be sent twice. 0 disables hedging. Defaults to 0.
+         */
+        BLS_HEDGE_PERCENTILE("bls.hedge.percentile"),
+        /** Never send the second request sooner than this (in milliseconds). Defaults to 50. */
+        BLS_HEDGE_MIN_DELAY("bls.hedge.minDelay"),
+        /** At most this percentage of the requests in flight may be hedged at the same time, so a slow BlackLab doesn't get twice the requests. Defaults to 10. */
+        BLS_HEDGE_BUDGET("bls.hedge.budget"),
         /** Url to reach blacklab-server from the browser. Never ends with a slash. */
         BLS_URL_ON_CLIENT("blsUrlExternal"),
         /** Where static content, custom xslt and other per-corpus data is stored. Never ends with a slash. */
@@ -104,9 +137,59 @@ public class GlobalConfig implements ServletContextListener {
         FRONTEND_WITH_CREDENTIALS("withCredentials"),
         /** Development mode, allow script tags to load js from an external server (e.g. webpack-dev-server), defaults to ${CF_URL_ON_CLIENT}/js. Never ends in a slash. */
         JSPATH("jspath"),
-        // todo remove and use a file watcher or something
-        /** Development mode, disable caching of any corpus data (e.g. search.xml, article.xsl, meta.xsl etc) */
+        /**
+         * Development mode, disable caching of any corpus data (e.g. search.xml, article.xsl, meta.xsl etc)
+         * When enabled, changes to files in CORPUS_CONFIG_DIR are still picked up, see {@link CorpusFileWatcher}.
+         */
         CACHE("cache"),
+        /**
+         * How long (in seconds) data retrieved from BlackLab on behalf of a logged-in user is cached for that user.
+         * Entries are keyed on a hash of the user's credentials, so users never see each other's data.
+         * 0 disables caching for logged-in users. Defaults to 60.
+         */
+        CACHE_AUTHENTICATED_TTL("cache.authenticated.ttl"),
+        /** Maximum number of entries in the cache for logged-in users. Defaults to 1000. */
+        CACHE_AUTHENTICATED_MAX_SIZE("cache.authenticated.maxSize"),
+        /**
+         * Interval (in seconds) after which cached BlackLab index metadata is refreshed.
+         * The cached version is still served while the refresh runs in the background. 0 disables refreshing. Defaults to 300.
+         */
+        CACHE_REFRESH_INTERVAL("cache.refreshInterval"),
+        /**
+         * How long (in seconds) transformed document contents (as shown on the article page) are cached.
+         * Only used for requests without authentication. 0 disables the cache. Defaults to 600.
+         */
+        CACHE_ARTICLES_TTL("cache.articles.ttl"),
+        /** Maximum number of transformed documents (or pages of documents) to cache. Defaults to 100. */
+        CACHE_ARTICLES_MAX_SIZE("cache.articles.maxSize"),
+        /**
+         * Maximum total size (in megabytes, counting a byte per character) of the cached transformed documents.
+         * Large documents are evicted sooner, a document larger than this by itself is not cached. Defaults to 64.
+         */
+        CACHE_ARTICLES_MAX_MEGABYTES("cache.articles.maxMegabytes"),
+        /**
+         * How long (in seconds) document metadata is cached, along with its transformed (meta.xsl) version.
+         * Only used for requests without authentication. 0 disables the cache. Defaults to 600.
+         */
+        CACHE_METADATA_TTL("cache.metadata.ttl"),
+        /** Maximum number of documents to cache the metadata of. Defaults to 1000. */
+        CACHE_METADATA_MAX_SIZE("cache.metadata.maxSize"),
+        /**
+         * Time (in seconds) within which a page must be answered, see {@link Deadline}. Requests to BlackLab only get the time that's left.
+         * When it runs out, the request fails with 504 Gateway Timeout. 0 for no limit. Defaults to 30.
+         */
+        REQUEST_DEADLINE("request.deadline"),
+        /** Like {@link #REQUEST_DEADLINE}, for document pages (/docs/). Defaults to 120. */
+        REQUEST_DEADLINE_DOCS("request.deadline.docs"),
+        /** Like {@link #REQUEST_DEADLINE}, for the api (/api/). Defaults to 120. */
+        REQUEST_DEADLINE_API("request.deadline.api"),
+        /**
+         * Gzip compression level (1-9) for html and api responses, if the client supports it. 0 disables compression. Defaults to 6.
+         * Static files are always compressed when possible, regardless of this setting.
+         */
+        COMPRESSION_LEVEL("compression.level"),
+        /** Responses smaller than this (in bytes) are not compressed. Defaults to 1024. */
+        COMPRESSION_MIN_SIZE("compression.minSize"),
         /** Enable/disable the debug info checkbox in the interface */
         SHOW_DEBUG_CHECKBOX_ON_CLIENT("debugInfo"),
         /**
@@ -157,11 +240,36 @@ public class GlobalConfig implements ServletContextListener {
         // Keep these in sync with what we document as defaults in README.md
         set(defaultProps, Keys.BLS_URL_ON_CLIENT,               "/blacklab-server"); // no domain to account for proxied servers
         set(defaultProps, Keys.BLS_URL_ON_SERVER,               "http://localhost:8080/blacklab-server");
+        set(defaultProps, Keys.BLS_CONNECT_TIMEOUT,             "10");
+        set(defaultProps, Keys.BLS_READ_TIMEOUT,                "60");
+        set(defaultProps, Keys.BLS_MAX_CONNECTIONS,             "50");
+        set(defaultProps, Keys.BLS_HTTP2,                       "false");
+        set(defaultProps, Keys.BLS_CIRCUIT_BREAKER_FAILURE_RATE, "50");
+        set(defaultProps, Keys.BLS_CIRCUIT_BREAKER_SLOW_CALL_RATE, "80");
+        set(defaultProps, Keys.BLS_CIRCUIT_BREAKER_SLOW_CALL_DURATION, "10");
+        set(defaultProps, Keys.BLS_CIRCUIT_BREAKER_WINDOW_SIZE, "20");
+        set(defaultProps, Keys.BLS_CIRCUIT_BREAKER_OPEN_DURATION, "30");
+        set(defaultProps, Keys.BLS_HEDGE_PERCENTILE,            "0");
+        set(defaultProps, Keys.BLS_HEDGE_MIN_DELAY,             "50");
+        set(defaultProps, Keys.BLS_HEDGE_BUDGET,                "10");
         set(defaultProps, Keys.CORPUS_CONFIG_DIR,               SystemUtils.IS_OS_WINDOWS ? "C:\\etc\\blacklab\\projectconfigs" : "/etc/blacklab/projectconfigs");
         set(defaultProps, Keys.DEFAULT_CORPUS_CONFIG,           "default");
         set(defaultProps, Keys.SHOW_DEBUG_CHECKBOX_ON_CLIENT,   "false");
         set(defaultProps, Keys.FRONTEND_WITH_CREDENTIALS,       "false");
         set(defaultProps, Keys.CACHE,                           "true");
+        set(defaultProps, Keys.CACHE_AUTHENTICATED_TTL,         "60");
+        set(defaultProps, Keys.CACHE_AUTHENTICATED_MAX_SIZE,    "1000");
+        set(defaultProps, Keys.CACHE_REFRESH_INTERVAL,          "300");
+        set(defaultProps, Keys.CACHE_ARTICLES_TTL,              "600");
+        set(defaultProps, Keys.CACHE_ARTICLES_MAX_SIZE,         "100");
+        set(defaultProps, Keys.CACHE_ARTICLES_MAX_MEGABYTES,    "64");
+        set(defaultProps, Keys.CACHE_METADATA_TTL,              "600");
+        set(defaultProps, Keys.CACHE_METADATA_MAX_SIZE,         "1000");
+        set(defaultProps, Keys.REQUEST_DEADLINE,                "30");
+        set(defaultProps, Keys.REQUEST_DEADLINE_DOCS,           "120");
+        set(defaultProps, Keys.REQUEST_DEADLINE_API,            "120");
+        set(defaultProps, Keys.COMPRESSION_LEVEL,               "6");
+        set(defaultProps, Keys.COMPRESSION_MIN_SIZE,            "1024");
         set(defaultProps, Keys.OIDC_CLIENT_ID,                  "corpus-frontend");
 
         set(defaultProps, Keys.AUTH_SOURCE_NAME,                 "Authorization");
@@ -231,6 +339,11 @@ public class GlobalConfig implements ServletContextListener {
         return Boolean.parseBoolean(get(instanceProps, k));
     }
 
+    /** Only use for keys that are validated as integers in {@link #validateAndNormalize()}. */
+    public int getInt(Keys k) {
+        return Integer.parseInt(get(instanceProps, k));
+    }
+
     private static String get(Properties p, Keys k) {
         return p.getProperty(k.toString());
     }
@@ -307,6 +420,43 @@ public class GlobalConfig implements ServletContextListener {
             logger.warning("Invalid value for " + Keys.AUTH_TARGET_TYPE + ": " + get(Keys.AUTH_TARGET_TYPE) + ". Defaulting to 'header'.");
             set(Keys.AUTH_TARGET_TYPE, "header");
         }
+        validateNonNegativeInt(Keys.CACHE_AUTHENTICATED_TTL);
+        validateNonNegativeInt(Keys.CACHE_AUTHENTICATED_MAX_SIZE);
+        validateNonNegativeInt(Keys.CACHE_REFRESH_INTERVAL);
+        validateNonNegativeInt(Keys.CACHE_ARTICLES_TTL);
+        validateNonNegativeInt(Keys.CACHE_ARTICLES_MAX_SIZE);
+        validateNonNegativeInt(Keys.CACHE_ARTICLES_MAX_MEGABYTES);
+        validateNonNegativeInt(Keys.CACHE_METADATA_TTL);
+        validateNonNegativeInt(Keys.CACHE_METADATA_MAX_SIZE);
+        validateNonNegativeInt(Keys.REQUEST_DEADLINE);
+        validateNonNegativeInt(Keys.REQUEST_DEADLINE_DOCS);
+        validateNonNegativeInt(Keys.REQUEST_DEADLINE_API);
+        validateNonNegativeInt(Keys.COMPRESSION_LEVEL);
+        validateNonNegativeInt(Keys.COMPRESSION_MIN_SIZE);
+        validateNonNegativeInt(Keys.BLS_CONNECT_TIMEOUT);
+        validateNonNegativeInt(Keys.BLS_READ_TIMEOUT);
+        validateNonNegativeInt(Keys.BLS_MAX_CONNECTIONS);
+        validateNonNegativeInt(Keys.BLS_CIRCUIT_BREAKER_FAILURE_RATE);
+        validateNonNegativeInt(Keys.BLS_CIRCUIT_BREAKER_SLOW_CALL_RATE);
+        validateNonNegativeInt(Keys.BLS_CIRCUIT_BREAKER_SLOW_CALL_DURATION);
+        validateNonNegativeInt(Keys.BLS_CIRCUIT_BREAKER_WINDOW_SIZE);
+        validateNonNegativeInt(Keys.BLS_CIRCUIT_BREAKER_OPEN_DURATION);
+        validateNonNegativeInt(Keys.BLS_HEDGE_PERCENTILE);
+        validateNonNegativeInt(Keys.BLS_HEDGE_MIN_DELAY);
+        validateNonNegativeInt(Keys.BLS_HEDGE_BUDGET);
+    }
+
+    private void validateNonNegativeInt(Keys k) {
+        try {
+            if (Integer.parseInt(get(k).trim()) >= 0) {
+                set(k, get(k).trim());
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        logger.warning("Invalid value for " + k + ": " + get(k) + ". Defaulting to '" + get(defaultProps, k) + "'.");
+        set(k, get(defaultProps, k));
     }
 
     /**
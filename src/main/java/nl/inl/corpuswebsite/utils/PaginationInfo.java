@@ -2,10 +2,6 @@ package nl.inl.corpuswebsite.utils;
 
 import java.util.Optional;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import org.apache.commons.lang3.StringUtils;
 
 /**
  * Since pagination can be disabled, edited by the user through the url, and BlackLab has some peculiarities with values touching document boundaries,
@@ -19,8 +15,6 @@ import org.apache.commons.lang3.StringUtils;
 public class PaginationInfo {
     private static final Logger logger = Logger.getLogger(PaginationInfo.class.getName());
 
-    private static final Pattern CAPTURE_DOCLENGTH_PATTERN = Pattern.compile("<lengthInTokens>\\s*(\\d+)\\s*</lengthInTokens>");
-
     public final int pageSize;
     public final int documentLength;
 
@@ -40,7 +34,7 @@ public class PaginationInfo {
      */
     public PaginationInfo(
             Optional<Integer> pageSize,
-            Result<String, ? extends Exception> documentMetadata,
+            Result<DocumentMetadata, ? extends Exception> documentMetadata,
             Optional<Integer> requestedPageStart,
             Optional<Integer> requestedPageEnd,
             Optional<Integer> hitStart,
@@ -49,7 +43,7 @@ public class PaginationInfo {
 
         // Get doc length for the annotated field
         this.documentLength = documentMetadata
-                .map(metadata -> PaginationInfo.getDocumentLength(metadata, field))
+                .map(metadata -> metadata.getDocumentLength(field))
                 .getResult().orElse(Integer.MAX_VALUE);
 
         this.pageSize = pageSize.orElse(Integer.MAX_VALUE);
@@ -90,22 +84,4 @@ public class PaginationInfo {
         this.blacklabPageStart = start != 0 ? Optional.of(start) : Optional.empty();
         this.blacklabPageEnd = end != documentLength ? Optional.of(end) : Optional.empty();
     }
-
-    private static int getDocumentLength(String documentMetadata, String field) {
-        Pattern p;
-        boolean isParallel = !StringUtils.isEmpty(field);
-        if (isParallel) {
-            // Get document length for a specific field (parallel corpora)
-            // (note that field may either be full field name like contents__nl or just a version like nl)
-            p = Pattern.compile("<fieldName>(?:\\w+__)?" + field + "</fieldName>\\s*<tokenCount>\\s*(\\d+)\\s*</tokenCount>");
-        } else {
-            // Get document length for main annotated field
-            p = CAPTURE_DOCLENGTH_PATTERN;
-        }
-        Matcher m = p.matcher(documentMetadata);
-        if (m.find())
-            return Integer.parseInt(m.group(1));
-        else
-            throw new RuntimeException("Cannot decode document size" + (isParallel ? " for field " + field : "") + ". Unsupported BlackLab version?");
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,11 @@
+package nl.inl.corpuswebsite.utils;
+
+/**
+ * The client went away (see {@link Deadline#cancel()}), so we stop working on its request.
+ * Like {@link ReturnToClientException}, should only be caught at the top level, where nothing is sent as there is nobody to send it to.
+ */
+public class RequestCancelledException extends RuntimeException {
+	public RequestCancelledException() {
+		super("The client closed the connection", null, false, false);
+	}
+}
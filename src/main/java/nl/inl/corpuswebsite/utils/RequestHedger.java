@@ -0,0 +1,248 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Reduces tail latency of idempotent requests by sending a second (hedge) request when the first is slow, and using whichever answers first.
+ * A request is slow when it takes longer than a percentile (e.g. the 95th) of recent request durations, so only the slowest few percent are hedged.
+ * <br>
+ * When the server is slow across the board, every request would be hedged, doubling the load at the worst possible moment.
+ * So only a limited share of the requests in flight may be hedged at the same time (the budget), and the threads that run requests are limited as well.
+ * Whichever request loses is cancelled (unless other requests share its result, see {@link AuthRequest#requestCoalesced(boolean)}).
+ */
+public class RequestHedger {
+    private static final Logger logger = Logger.getLogger(RequestHedger.class.getName());
+
+    /** How many recent durations the percentile is computed over. */
+    private static final int WINDOW = 500;
+    /** Recompute the delay after this many new durations, and don't hedge before we have this many. */
+    private static final int RECOMPUTE_EVERY = 50;
+
+    /** Counts, for diagnostics. */
+    public static class Status {
+        public final long requests;
+        public final long hedged;
+        public final long hedgeWins;
+        /** Slow requests that were not hedged, because the budget was used up or all threads were busy. */
+        public final long notHedged;
+        public final long delayMillis;
+
+        private Status(long requests, long hedged, long hedgeWins, long notHedged, long delayMillis) {
+            this.requests = requests;
+            this.hedged = hedged;
+            this.hedgeWins = hedgeWins;
+            this.notHedged = notHedged;
+            this.delayMillis = delayMillis;
+        }
+    }
+
+    private final int percentile;
+    private final long minDelayMillis;
+    /** Percentage of the requests in flight that may be hedged at the same time. */
+    private final int budgetPercent;
+    /** Runs both the requests and their hedges. When all threads are busy, requests run on the caller's thread without hedging. */
+    private final ThreadPoolExecutor executor;
+
+    /** Requests (that may be hedged) currently running. */
+    private final AtomicInteger inFlight = new AtomicInteger();
+    /** Hedges currently running. */
+    private final AtomicInteger hedgesInFlight = new AtomicInteger();
+
+    // Recent durations, guarded by itself.
+    private final long[] durations = new long[WINDOW];
+    private int next;
+    private int count;
+    private int sinceRecompute;
+    /** Hedge after this long, -1 while we don't have enough data yet. */
+    private volatile long delayMillis = -1;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong hedged = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong notHedged = new AtomicLong();
+
+    /**
+     * @param percentile hedge requests that take longer than this percentile (1-99) of recent durations.
+     * @param minDelayMillis never hedge sooner than this.
+     * @param budgetPercent at most this percentage (1-100) of the requests in flight may be hedged at the same time (but always at least one).
+     * @param maxThreads the maximum number of requests (and hedges) running at the same time.
+     */
+    public RequestHedger(int percentile, long minDelayMillis, int budgetPercent, int maxThreads) {
+        this.percentile = Math.max(1, Math.min(99, percentile));
+        this.minDelayMillis = minDelayMillis;
+        this.budgetPercent = Math.max(1, Math.min(100, budgetPercent));
+        this.executor = new ThreadPoolExecutor(0, Math.max(2, maxThreads), 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread t = new Thread(r, "blacklab-hedged-request");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** @return the hedger, or null if hedging is disabled. */
+    public static RequestHedger fromConfig(GlobalConfig config) {
+        int percentile = config.getInt(GlobalConfig.Keys.BLS_HEDGE_PERCENTILE);
+        return percentile > 0 ? new RequestHedger(percentile,
+                config.getInt(GlobalConfig.Keys.BLS_HEDGE_MIN_DELAY),
+                config.getInt(GlobalConfig.Keys.BLS_HEDGE_BUDGET),
+                // There's no point in running more requests than we may have connections to BlackLab.
+                config.getInt(GlobalConfig.Keys.BLS_MAX_CONNECTIONS)) : null;
+    }
+
+    /**
+     * Run the request, and if it hasn't completed within the hedge delay, run the hedge as well (if the budget allows it).
+     * Both get their own {@link Deadline#child() child} of the deadline, the one that loses is cancelled through it.
+     *
+     * @param deadline of the request we're doing this for.
+     * @param primary the request.
+     * @param hedge an equivalent request, preferably to another server.
+     * @param isFailure results that should not win if the other request may still do better (e.g. a server error).
+     * @return the first result that is not a failure, or the last result if both failed.
+     */
+    public <T, E extends Exception> Result<T, E> call(Deadline deadline, Function<Deadline, Result<T, E>> primary, Function<Deadline, Result<T, E>> hedge, Predicate<Result<T, E>> isFailure) {
+        requests.incrementAndGet();
+        long delay = delayMillis;
+        if (delay < 0) return timed(() -> primary.apply(deadline)).get();
+
+        Deadline primaryDeadline = deadline.child();
+        CompletableFuture<Result<T, E>> first;
+        try {
+            first = CompletableFuture.supplyAsync(timed(() -> primary.apply(primaryDeadline)), executor);
+        } catch (RejectedExecutionException e) {
+            // All threads busy, we're clearly not short on requests.
+            notHedged.incrementAndGet();
+            return timed(() -> primary.apply(deadline)).get();
+        }
+
+        inFlight.incrementAndGet();
+        try {
+            try {
+                return first.get(delay, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // fall through to hedging
+            }
+
+            if (!tryStartHedge()) {
+                notHedged.incrementAndGet();
+                return first.get();
+            }
+            try {
+                return hedge(deadline, first, primaryDeadline, hedge, isFailure, delay);
+            } finally {
+                hedgesInFlight.decrementAndGet();
+            }
+        } catch (ExecutionException e) {
+            throw unwrap(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            primaryDeadline.cancel();
+            throw new RuntimeException(e);
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /** Reserve a place in the hedge budget. */
+    private boolean tryStartHedge() {
+        while (true) {
+            int hedges = hedgesInFlight.get();
+            if (hedges >= Math.max(1, inFlight.get() * budgetPercent / 100)) return false;
+            if (hedgesInFlight.compareAndSet(hedges, hedges + 1)) return true;
+        }
+    }
+
+    private <T, E extends Exception> Result<T, E> hedge(Deadline deadline, CompletableFuture<Result<T, E>> first, Deadline primaryDeadline, Function<Deadline, Result<T, E>> hedge, Predicate<Result<T, E>> isFailure, long delay) throws ExecutionException, InterruptedException {
+        Deadline hedgeDeadline = deadline.child();
+        CompletableFuture<Result<T, E>> second;
+        try {
+            second = CompletableFuture.supplyAsync(timed(() -> hedge.apply(hedgeDeadline)), executor);
+        } catch (RejectedExecutionException e) {
+            notHedged.incrementAndGet();
+            return first.get();
+        }
+
+        long n = hedged.incrementAndGet();
+        if (n % 100 == 0) {
+            logger.info(String.format("Hedged %d of %d requests to BlackLab (after %d ms), the hedge was faster %d times", n, requests.get(), delay, hedgeWins.get()));
+        }
+
+        CompletableFuture<Result<T, E>> winner = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(2);
+        first.whenComplete((r, ex) -> complete(winner, pending, r, ex, isFailure, false));
+        second.whenComplete((r, ex) -> complete(winner, pending, r, ex, isFailure, true));
+
+        try {
+            return winner.join();
+        } catch (CompletionException e) {
+            throw unwrap(e.getCause());
+        } finally {
+            // Stop the one that lost (the winner is done already, so this doesn't affect it).
+            primaryDeadline.cancel();
+            hedgeDeadline.cancel();
+        }
+    }
+
+    private <T, E extends Exception> void complete(CompletableFuture<Result<T, E>> winner, AtomicInteger pending, Result<T, E> r, Throwable ex, Predicate<Result<T, E>> isFailure, boolean isHedge) {
+        boolean last = pending.decrementAndGet() == 0;
+        if (ex != null) {
+            if (last) winner.completeExceptionally(ex);
+            return;
+        }
+        if ((last || !isFailure.test(r)) && winner.complete(r) && isHedge) {
+            hedgeWins.incrementAndGet();
+        }
+    }
+
+    private <T, E extends Exception> Supplier<Result<T, E>> timed(Supplier<Result<T, E>> request) {
+        return () -> {
+            long start = System.currentTimeMillis();
+            try {
+                return request.get();
+            } finally {
+                record(System.currentTimeMillis() - start);
+            }
+        };
+    }
+
+    private void record(long duration) {
+        synchronized (durations) {
+            durations[next] = duration;
+            next = (next + 1) % WINDOW;
+            count = Math.min(count + 1, WINDOW);
+            if (++sinceRecompute < RECOMPUTE_EVERY) return;
+            sinceRecompute = 0;
+
+            long[] sorted = Arrays.copyOf(durations, count);
+            Arrays.sort(sorted);
+            int index = Math.max(0, (int) Math.ceil(percentile / 100.0 * count) - 1);
+            delayMillis = Math.max(minDelayMillis, sorted[index]);
+        }
+    }
+
+    private static RuntimeException unwrap(Throwable e) {
+        if (e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+        if (e instanceof RuntimeException) return (RuntimeException) e; // e.g. ReturnToClientException
+        return new RuntimeException(e);
+    }
+
+    public Status getStatus() {
+        return new Status(requests.get(), hedged.get(), hedgeWins.get(), notHedged.get(), delayMillis);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -33,7 +33,8 @@ public class Result<R, E extends Exception> {
     }
 
     private final static Set<Class<? extends Exception>> neverCatch = Set.of(
-            ReturnToClientException.class
+            ReturnToClientException.class,
+            RequestCancelledException.class
     );
 
     private final R result;
@@ -89,6 +90,7 @@ public class Result<R, E extends Exception> {
             return new Result<>(gen.apply(), null);
         } catch (Exception e) {
             if (e instanceof ReturnToClientException) throw (ReturnToClientException) e;
+            if (e instanceof RequestCancelledException) throw (RequestCancelledException) e;
             if (c.isAssignableFrom(e.getClass())) return Result.error(e);
             else throw new RuntimeException(e);
             // the method threw a different exception than our type.
@@ -128,6 +130,7 @@ public class Result<R, E extends Exception> {
             try { return new Result<>(mapper.apply(this.result), null); }
             catch (Exception e) {
                 if (e instanceof ReturnToClientException) throw (ReturnToClientException) e;
+                if (e instanceof RequestCancelledException) throw (RequestCancelledException) e;
                 else return new Result<>(null, e);
             }
         }
@@ -144,6 +147,7 @@ public class Result<R, E extends Exception> {
             try { return mapper.apply(this.result); }
             catch (Exception e) {
                 if (e instanceof ReturnToClientException) throw (ReturnToClientException) e;
+                if (e instanceof RequestCancelledException) throw (RequestCancelledException) e;
                 else return new Result<>(null, e);
             }
         }
@@ -246,6 +250,7 @@ public class Result<R, E extends Exception> {
             try { return Result.success(mapper.apply(this.error)); }
             catch (Exception e) {
                 if (e instanceof ReturnToClientException) throw (ReturnToClientException) e;
+                if (e instanceof RequestCancelledException) throw (RequestCancelledException) e;
                 else return new Result<>(null, e);
             }
         }
@@ -262,6 +267,7 @@ public class Result<R, E extends Exception> {
             try { return Result.success(mapper.apply(c.cast(this.error))); }
             catch (Exception e) {
                 if (e instanceof ReturnToClientException) throw (ReturnToClientException) e;
+                if (e instanceof RequestCancelledException) throw (RequestCancelledException) e;
                 else return new Result<>(null, e);
             }
         }
@@ -279,6 +285,7 @@ public class Result<R, E extends Exception> {
             try { return mapper.apply(this.error); }
             catch (Exception e) {
                 if (e instanceof ReturnToClientException) throw (ReturnToClientException) e;
+                if (e instanceof RequestCancelledException) throw (RequestCancelledException) e;
                 else return new Result<>(null, e);
             }
         }
@@ -303,6 +310,7 @@ public class Result<R, E extends Exception> {
             try { return mapper.apply(c.cast(this.error)); }
             catch (Exception e) {
                 if (e instanceof ReturnToClientException) throw (ReturnToClientException) e;
+                if (e instanceof RequestCancelledException) throw (RequestCancelledException) e;
                 else return new Result<>(null, e);
             }
         }
@@ -371,6 +379,7 @@ public class Result<R, E extends Exception> {
             try { return Result.error(mapper.apply(this.error)); }
             catch (Exception e) {
                 if (e instanceof ReturnToClientException) throw (ReturnToClientException) e;
+                if (e instanceof RequestCancelledException) throw (RequestCancelledException) e;
                 else return new Result<>(null, e);
             }
         }
@@ -389,6 +398,7 @@ public class Result<R, E extends Exception> {
             try { return Result.error(mapper.apply(c.cast(this.error))); }
             catch (Exception e) {
                 if (e instanceof ReturnToClientException) throw (ReturnToClientException) e;
+                if (e instanceof RequestCancelledException) throw (RequestCancelledException) e;
                 else return new Result<>(null, e);
             }
         }
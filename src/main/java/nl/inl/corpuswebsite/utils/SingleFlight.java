@@ -0,0 +1,151 @@
+package nl.inl.corpuswebsite.utils;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicates concurrent loads of the same key.
+ * The first caller for a key runs the loader, callers that arrive while that load is in flight wait for it and share its result.
+ * Loads for different keys never wait on each other.
+ * Nothing is retained after a load completes, so this is not a cache by itself, put the result in one if it should be kept.
+ *
+ * @param <K> the key type
+ * @param <V> the type of the loaded value
+ */
+public class SingleFlight<K, V> {
+    /** How long to wait at a time for a load without a deadline, see {@link #load(Object, Supplier, Deadline, Supplier)}. */
+    private static final Duration MAX_WAIT = Duration.ofMinutes(1);
+
+    private final ConcurrentHashMap<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+
+    /** A load in progress. */
+    private static class Flight<V> {
+        final CompletableFuture<V> result = new CompletableFuture<>();
+        /** The deadline the load runs with, cancelled once nobody waits for the result anymore. Null for loads without a deadline. */
+        final Deadline shared;
+        /** Callers waiting for the result, including the one running the load. Guarded by this. */
+        private int waiters = 1;
+
+        Flight(Deadline shared) {
+            this.shared = shared;
+        }
+
+        /** @return false if everyone already left, and the load is being cancelled. */
+        synchronized boolean join() {
+            if (waiters == 0) return false;
+            ++waiters;
+            return true;
+        }
+
+        /** @return runs {@link #leave()} the first time it's run, so it can be called both when a waiter is done and when it's cancelled. */
+        Runnable leaveOnce() {
+            AtomicBoolean left = new AtomicBoolean();
+            return () -> {
+                if (!left.getAndSet(true)) leave();
+            };
+        }
+
+        private void leave() {
+            boolean last;
+            synchronized (this) {
+                last = --waiters == 0;
+            }
+            if (last && shared != null) shared.cancel();
+        }
+    }
+
+    /**
+     * Run the loader for this key, or wait for the load already running for this key.
+     * If the load we waited for threw instead of returning (e.g. a {@link ReturnToClientException} that modified the response of another request),
+     * the loader is run again on this thread instead of sharing that exception.
+     *
+     * @param key the key to deduplicate on
+     * @param loader computes the value, runs on the calling thread
+     * @return the loaded value
+     */
+    public V load(K key, Supplier<V> loader) {
+        Flight<V> ours = new Flight<>(null);
+        Flight<V> theirs = inFlight.putIfAbsent(key, ours);
+        if (theirs != null) {
+            try {
+                return theirs.result.join();
+            } catch (CompletionException | CancellationException e) {
+                return loader.get();
+            }
+        }
+        return run(key, ours, loader);
+    }
+
+    /**
+     * Like {@link #load(Object, Supplier)}, but waiting for a load that's already running is limited by our own deadline,
+     * as that load may have been started by a request that has more time than we do (or isn't in a hurry at all).
+     * <br>
+     * The loader gets a deadline of its own, with the same time limit as that of the caller that runs it.
+     * It's only cancelled once every caller waiting for the result has been cancelled,
+     * so when the caller that started the load goes away, the others still get the result.
+     *
+     * @param loader computes the value, runs on the calling thread
+     * @param deadline of the calling request. When it passes while we wait, we return onExpired. When it's cancelled, we stop waiting.
+     * @param onExpired the value to return when the deadline passes while waiting
+     * @throws RequestCancelledException if the request is cancelled while waiting.
+     */
+    public V load(K key, Function<Deadline, V> loader, Deadline deadline, Supplier<V> onExpired) {
+        Flight<V> ours = new Flight<>(deadline.detached());
+        Flight<V> theirs = inFlight.putIfAbsent(key, ours);
+        if (theirs == null) {
+            deadline.onCancel(ours.leaveOnce());
+            return run(key, ours, () -> loader.apply(ours.shared));
+        }
+        // They're being cancelled, don't wait for that.
+        if (!theirs.join()) return loader.apply(deadline);
+
+        Runnable leave = theirs.leaveOnce();
+        // Our own view of their load, so we can stop waiting for it without affecting anyone else waiting for it.
+        CompletableFuture<V> waiting = theirs.result.thenApply(Function.identity());
+        deadline.onCancel(() -> {
+            waiting.cancel(false);
+            leave.run();
+        });
+        try {
+            while (true) {
+                try {
+                    return waiting.get(deadline.limit(MAX_WAIT).toNanos(), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    if (deadline.isExpired()) return onExpired.get();
+                }
+            }
+        } catch (CancellationException e) {
+            deadline.throwIfCancelled();
+            throw e; // nobody else cancels it
+        } catch (ExecutionException e) {
+            return loader.apply(deadline);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            leave.run();
+        }
+    }
+
+    private V run(K key, Flight<V> ours, Supplier<V> loader) {
+        try {
+            V value = loader.get();
+            ours.result.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            ours.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, ours);
+        }
+    }
+}
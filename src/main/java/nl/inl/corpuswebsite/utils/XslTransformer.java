@@ -1,23 +1,36 @@
 package nl.inl.corpuswebsite.utils;
 
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.FilterReader;
+import java.io.FilterWriter;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.net.URI;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.function.Function;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Collectors;
 
 import javax.xml.transform.ErrorListener;
 import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Source;
 import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerConfigurationException;
@@ -28,8 +41,19 @@ import javax.xml.transform.stream.StreamSource;
 
 import org.apache.commons.lang3.tuple.Pair;
 
+import net.sf.saxon.jaxp.SaxonTransformerFactory;
+import net.sf.saxon.jaxp.TemplatesImpl;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XsltCompiler;
 import net.sf.saxon.trans.XPathException;
 
+/**
+ * A compiled stylesheet along with the parameters to pass to it.
+ * Immutable and thread-safe: every transformation gets its own (cheap) {@link Transformer} from the shared compiled {@link Templates},
+ * so transformations with the same stylesheet run in parallel. Use {@link #withParameters(Map)} to set parameters for a transformation.
+ */
 public class XslTransformer {
     private static final Logger logger = Logger.getLogger(XslTransformer.class.getName());
 
@@ -38,12 +62,12 @@ public class XslTransformer {
 
         @Override
         public void error(TransformerException e) throws TransformerException {
-            this.exceptions.add(Pair.of(this.getDescriptiveMessage(e), e));
+            this.exceptions.add(Pair.of(getDescriptiveMessage(e), e));
         }
 
         @Override
         public void fatalError(TransformerException e) throws TransformerException {
-            this.exceptions.add(Pair.of(this.getDescriptiveMessage(e), e));
+            this.exceptions.add(Pair.of(getDescriptiveMessage(e), e));
         }
 
         @Override
@@ -56,7 +80,7 @@ public class XslTransformer {
             return this.exceptions;
         }
 
-        private String getDescriptiveMessage(TransformerException e) {
+        private static String getDescriptiveMessage(TransformerException e) {
             if (e instanceof TransformerConfigurationException) {
                 final TransformerConfigurationException ee  = (TransformerConfigurationException) e;
                 return ee.getMessageAndLocation();
@@ -69,6 +93,27 @@ public class XslTransformer {
         }
     }
 
+    /**
+     * For everything but compiling (transforming, parsing), where errors are thrown to the caller anyway, so we only log them.
+     * Shared by all threads, so it must not keep any state. Errors while compiling are captured per compilation, see {@link #compile}.
+     */
+    private static class LoggingErrorListener implements ErrorListener {
+        @Override
+        public void error(TransformerException e) {
+            logger.log(Level.FINE, CapturingErrorListener.getDescriptiveMessage(e), e);
+        }
+
+        @Override
+        public void fatalError(TransformerException e) {
+            logger.log(Level.FINE, CapturingErrorListener.getDescriptiveMessage(e), e);
+        }
+
+        @Override
+        public void warning(TransformerException e) {
+            logger.log(Level.WARNING, CapturingErrorListener.getDescriptiveMessage(e), e);
+        }
+    }
+
     /**
      * Thread-safe as long as you don't change Configuration, which we don't. See
      * https://saxonica.plan.io/boards/2/topics/5645.
@@ -76,11 +121,17 @@ public class XslTransformer {
     private static final TransformerFactory FACTORY
             = TransformerFactory.newInstance("net.sf.saxon.TransformerFactoryImpl", XslTransformer.class.getClassLoader());
 
-    private final Map<String, String> params = new HashMap<>();
+    /** For compiling, each compilation gets its own compiler, so its errors are captured separately. Shares the configuration of the {@link #FACTORY}. */
+    private static final Processor PROCESSOR = ((SaxonTransformerFactory) FACTORY).getProcessor();
+
+    private final Templates templates;
+
+    private final Map<String, String> params;
 
-    private final Transformer transformer;
+    private static final Map<String, Templates> TEMPLATES = new ConcurrentHashMap<>();
 
-    private static final Map<String, Templates> TEMPLATES = new HashMap<>();
+    /** So a stylesheet is compiled only once when several requests need it at the same time, without holding up requests for other stylesheets. */
+    private static final SingleFlight<String, Result<Templates, TransformerException>> COMPILING = new SingleFlight<>();
 
     private static boolean useCache = true;
 
@@ -89,94 +140,244 @@ public class XslTransformer {
     }
 
     static {
-        FACTORY.setErrorListener(new CapturingErrorListener());
+        FACTORY.setErrorListener(new LoggingErrorListener());
+    }
+
+    /**
+     * Parse xml into a tree (a TinyTree, using the same configuration as our stylesheets), so it can be queried and transformed several times without parsing it again.
+     * @throws SaxonApiException if it's not well-formed xml
+     */
+    public static XdmNode parse(String xml) throws SaxonApiException {
+        return PROCESSOR.newDocumentBuilder().build(new StreamSource(new StringReader(xml)));
     }
 
     /**
-     * Constructs a new transformer (and templates if not cached and cache is enabled) and caches the templates if caching is enabled.
+     * Compile the stylesheets from files in this directory (or its subdirectories) again, along with the given files, and replace the cached versions.
+     * A new version replaces the old one only once it has compiled successfully, so the old one stays in use until then, and if the new one has errors, those are logged.
+     * Stylesheets of which the file no longer exists are removed.
+     * Takes a while, so run this in the background.
+     *
+     * @param directory recompile the cached stylesheets from this directory
+     * @param files also compile these (e.g. new files, that were not cached yet). Files that don't exist are ignored.
+     * @return the number of stylesheets that were compiled successfully
+     */
+    public static int recompile(Path directory, Collection<Path> files) {
+        String prefix = directory.toAbsolutePath().toString() + File.separator;
+        Set<String> ids = new LinkedHashSet<>();
+        TEMPLATES.keySet().stream().filter(id -> id.startsWith(prefix)).forEach(ids::add);
+        files.forEach(f -> ids.add(f.toAbsolutePath().toString()));
+
+        int compiled = 0;
+        for (String id : ids) {
+            File file = new File(id);
+            if (!file.isFile()) {
+                TEMPLATES.remove(id);
+                continue;
+            }
+            try {
+                TEMPLATES.put(id, compile(id, new StreamSource(file)));
+                ++compiled;
+            } catch (TransformerException e) {
+                logger.log(Level.SEVERE, "Stylesheet " + id + " was changed, but could not be compiled. Still using the previous version (if any).\n" + e.getMessage());
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Compiles the stylesheet (unless already cached and cache is enabled) and caches the templates if caching is enabled.
      *
      * @param id
      * @param source
      * @return
      * @throws TransformerException
      */
-    private static Transformer get(String id, StreamSource source) throws Exception {
-        synchronized (TEMPLATES) {
+    private static Templates get(String id, StreamSource source) throws TransformerException {
+        if (!useCache) return compile(id, source);
+
+        Templates cached = TEMPLATES.get(id);
+        if (cached != null) return cached;
+        return COMPILING.load(id, () -> {
+            Templates t = TEMPLATES.get(id); // might have been compiled while we were getting here
+            if (t != null) return Result.success(t);
             try {
-                FACTORY.setErrorListener(new CapturingErrorListener()); // renew to remove old exceptions
-                Function<String, Templates> gen = __ -> { try { return FACTORY.newTemplates(source); } catch (TransformerException e) { throw new RuntimeException(e); } };
-                Templates t = (useCache ? TEMPLATES.computeIfAbsent(id, gen) : gen.apply(id));
-                return t.newTransformer();
-            } catch (Exception e) {
-                CapturingErrorListener l = (CapturingErrorListener) FACTORY.getErrorListener();
-                if (!l.getErrorList().isEmpty()) {
-                    throw l.getErrorList().get(0).getRight();
-                }
-                throw e;
+                t = compile(id, source);
+                TEMPLATES.put(id, t);
+                return Result.success(t);
+            } catch (TransformerException e) {
+                return Result.error(e);
             }
+        }).getOrThrow();
+    }
+
+    /** @throws TransformerException with all errors the compiler reported for this stylesheet. */
+    private static Templates compile(String id, StreamSource source) throws TransformerException {
+        CapturingErrorListener errors = new CapturingErrorListener();
+        XsltCompiler compiler = PROCESSOR.newXsltCompiler();
+        compiler.setErrorListener(errors);
+        try {
+            return new TemplatesImpl(compiler.compile(source));
+        } catch (SaxonApiException e) {
+            List<Pair<String, Exception>> list = errors.getErrorList();
+            if (list.isEmpty()) throw new TransformerException("Error compiling stylesheet " + id + ": " + e.getMessage(), e);
+            String messages = list.stream().map(Pair::getLeft).collect(Collectors.joining("\n"));
+            throw new TransformerException("Error compiling stylesheet " + id + ":\n" + messages, list.get(0).getRight());
         }
     }
 
     public XslTransformer(File stylesheet) throws Exception {
-        transformer = get(stylesheet.getAbsolutePath(), new StreamSource(stylesheet));
+        this(get(stylesheet.getAbsolutePath(), new StreamSource(stylesheet)), Map.of());
     }
 
     public XslTransformer(String id, URI uri) throws Exception {
-        transformer = get(id, new StreamSource(uri.toString()));
+        this(get(id, new StreamSource(uri.toString())), Map.of());
     }
 
     public XslTransformer(String id, Reader sheet) throws Exception {
-        transformer = get(id, new StreamSource(sheet));
+        this(get(id, new StreamSource(sheet)), Map.of());
     }
 
     public XslTransformer(String id, String xsl) throws Exception {
         this(id, new StringReader(xsl));
     }
 
+    private XslTransformer(Templates templates, Map<String, String> params) {
+        this.templates = templates;
+        this.params = params;
+    }
+
+    /** @return the same stylesheet, with these parameters added (replacing any with the same name). */
+    public XslTransformer withParameters(Map<String, String> params) {
+        Map<String, String> p = new HashMap<>(this.params);
+        p.putAll(params);
+        return new XslTransformer(templates, Collections.unmodifiableMap(p));
+    }
+
+    public Map<String, String> getParameters() {
+        return params;
+    }
+
+    private Transformer newTransformer() throws TransformerException {
+        Transformer transformer = templates.newTransformer();
+        for (Entry<String, String> e : params.entrySet()) {
+            transformer.setParameter(e.getKey(), e.getValue());
+        }
+        transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        return transformer;
+    }
+
     public String transform(String source)
             throws TransformerException {
-        StreamSource ssSource = new StreamSource(new StringReader(source));
+        return transform(source, Deadline.NONE);
+    }
+
+    /**
+     * Like {@link #transform(String)}, but stops when the request is cancelled or runs out of time (checked while reading the source and writing the result).
+     * @throws RequestCancelledException if the request was cancelled.
+     */
+    public String transform(String source, Deadline deadline)
+            throws TransformerException {
+        StreamSource ssSource = new StreamSource(new FilterReader(new StringReader(source)) {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                check(deadline);
+                return super.read(cbuf, off, len);
+            }
+        });
+        return transform(ssSource, deadline);
+    }
+
+    /**
+     * Transform a source that was already parsed (see {@link #parse(String)}), or any other source.
+     * Stops when the request is cancelled or runs out of time (checked while writing the result).
+     * @throws RequestCancelledException if the request was cancelled.
+     */
+    public String transform(Source source, Deadline deadline)
+            throws TransformerException {
         StringWriter result = new StringWriter();
-        StreamResult streamResult = new StreamResult(result);
+        StreamResult streamResult = new StreamResult(new FilterWriter(result) {
+            @Override
+            public void write(int c) throws IOException {
+                check(deadline);
+                super.write(c);
+            }
 
-        synchronized (transformer) {
-            for (Entry<String, String> e : params.entrySet()) {
-                transformer.setParameter(e.getKey(), e.getValue());
+            @Override
+            public void write(char[] cbuf, int off, int len) throws IOException {
+                check(deadline);
+                super.write(cbuf, off, len);
             }
 
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            //transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.transform(ssSource, streamResult);
-            transformer.reset();
-        }
+            @Override
+            public void write(String str, int off, int len) throws IOException {
+                check(deadline);
+                super.write(str, off, len);
+            }
+        });
 
+        try {
+            newTransformer().transform(source, streamResult);
+        } catch (TransformerException e) {
+            deadline.throwIfCancelled();
+            throw e;
+        }
         return result.toString();
     }
 
-    public <W extends Writer> W streamTransform(Reader source, W result)
-            throws TransformerException {
-        StreamSource ssSource = new StreamSource(source);
-        StreamResult streamResult = new StreamResult(result);
+    /** Makes the transformation stop, see {@link #transform(Source, Deadline)}. */
+    private static void check(Deadline deadline) throws IOException {
+        if (deadline.isCancelled()) throw new IOException("Request cancelled");
+        if (deadline.isExpired()) throw new IOException("Request timed out");
+    }
 
-        synchronized (transformer) {
-            for (Entry<String, String> e : params.entrySet()) {
-                transformer.setParameter(e.getKey(), e.getValue());
+    /**
+     * Transform while reading, writing the result as it's produced, so neither the source nor the result has to be held in memory as a whole.
+     * The streams are not closed.
+     * Stops when the request is cancelled or runs out of time (checked while reading the source and writing the result).
+     * @throws RequestCancelledException if the request was cancelled.
+     */
+    public void transform(InputStream source, OutputStream result, Deadline deadline)
+            throws TransformerException {
+        StreamSource ssSource = new StreamSource(new FilterInputStream(source) {
+            @Override
+            public int read() throws IOException {
+                check(deadline);
+                return super.read();
             }
 
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.transform(ssSource, streamResult);
-            transformer.reset();
-        }
-        return result;
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                check(deadline);
+                return super.read(b, off, len);
+            }
+        });
+        StreamResult streamResult = new StreamResult(new FilterOutputStream(result) {
+            @Override
+            public void write(int b) throws IOException {
+                check(deadline);
+                out.write(b);
+            }
 
-    }
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                check(deadline);
+                out.write(b, off, len);
+            }
+        });
 
-    public void addParameter(String key, String value) {
-        params.put(key, value);
+        try {
+            newTransformer().transform(ssSource, streamResult);
+        } catch (TransformerException e) {
+            deadline.throwIfCancelled();
+            throw e;
+        }
     }
 
-    public void clearParameters() {
-        params.clear();
+    public <W extends Writer> W streamTransform(Reader source, W result)
+            throws TransformerException {
+        Transformer transformer = newTransformer();
+        transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+        transformer.transform(new StreamSource(source), new StreamResult(result));
+        return result;
     }
 }